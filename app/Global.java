@@ -0,0 +1,146 @@
+import models.DatabaseIndexes;
+import models.Game;
+import models.GameSessionStore;
+import models.GameStatistics;
+import models.Leaderboard;
+import models.LocationUpdates;
+import models.Matchmaker;
+import models.Presence;
+import models.SocialGraph;
+import models.User;
+import models.UserLocationIndex;
+import controllers.PushNotifications;
+import java.lang.reflect.Method;
+
+import play.Application;
+import play.GlobalSettings;
+import play.Logger;
+import play.core.j.JavaResultExtractor;
+import play.libs.F.Callback;
+import play.libs.F.Promise;
+import play.mvc.Action;
+import play.mvc.Http;
+import play.mvc.SimpleResult;
+import util.ExecutionContexts;
+import util.GameConfiguration;
+import util.Metrics;
+
+/**
+ * Application lifecycle hooks, see:
+ * http://www.playframework.com/documentation/2.2.x/JavaGlobal
+ * 
+ * On start the database indexes are created and the in-memory state of the server 
+ * is initialized from the database,
+ * every request is timed (see util.Metrics),
+ * on stop the background workers are shut down and the running games and pending locations are written to the database.
+ *
+ */
+public class Global extends GlobalSettings {
+
+	@Override
+	public void onStart(Application app) {
+		GameConfiguration.FacebookGraphEndpointUrl = app.configuration().getString("facebook.graphEndpoint");
+		GameConfiguration.GcmSendEndpointUrl = app.configuration().getString("gcm.sendEndpoint");
+		
+		String matchmakingMode = app.configuration().getString("matchmaking.mode");
+		if(matchmakingMode != null) {
+			GameConfiguration.MatchmakingMode = matchmakingMode;
+		}
+		
+		// the handles belong to the database connection and the actor system of this application
+		User.openCollection();
+		Game.openCollection();
+		ExecutionContexts.open();
+		
+		// background workers of this application, stopped in onStop
+		PushNotifications.open();
+		GameSessionStore.open();
+		LocationUpdates.open();
+		Matchmaker.open();
+		Presence.open();
+		
+		DatabaseIndexes.ensureIndexes();
+		
+		try {
+			// ends the participation of stale users, so they are not loaded into the index
+			Presence.getInstance().loadFromDatabase();
+			
+		} catch (RuntimeException e) {
+			Logger.error("Could not load the online users from the database", e);
+		}
+		
+		try {
+			UserLocationIndex.getInstance().loadFromDatabase();
+			
+		} catch (RuntimeException e) {
+			Logger.error("Could not load the nearby users index from the database", e);
+		}
+		
+		try {
+			Leaderboard.getInstance().loadFromDatabase();
+			
+		} catch (RuntimeException e) {
+			Logger.error("Could not load the leaderboard from the database", e);
+		}
+		
+		// not caught: opponents and friendships are only looked up in the graph,
+		// without it every request would find no friends
+		SocialGraph.getInstance().loadFromDatabase();
+		
+		try {
+			GameStatistics.getInstance().loadFromDatabase();
+			
+		} catch (RuntimeException e) {
+			Logger.error("Could not load the game statistics from the database", e);
+		}
+	}
+
+	@Override
+	public Action onRequest(Http.Request request, Method actionMethod) {
+		final Metrics.Histogram histogram = Metrics.route(actionMethod.getDeclaringClass().getSimpleName() + "." + actionMethod.getName());
+		
+		return new Action.Simple() {
+			@Override
+			public Promise<SimpleResult> call(Http.Context ctx) throws Throwable {
+				final long start = System.nanoTime();
+				
+				Promise<SimpleResult> result;
+				try {
+					result = delegate.call(ctx);
+				} catch (Throwable t) {
+					histogram.record(System.nanoTime() - start, true);
+					throw t;
+				}
+				
+				// asynchronous actions are measured until their result is there
+				result.onRedeem(new Callback<SimpleResult>() {
+					@Override
+					public void invoke(SimpleResult simpleResult) {
+						histogram.record(System.nanoTime() - start, JavaResultExtractor.getStatus(simpleResult) >= 500);
+					}
+				});
+				result.onFailure(new Callback<Throwable>() {
+					@Override
+					public void invoke(Throwable t) {
+						histogram.record(System.nanoTime() - start, true);
+					}
+				});
+				
+				return result;
+			}
+		};
+	}
+
+	@Override
+	public void onStop(Application app) {
+		GameSessionStore.close();
+		LocationUpdates.close();
+		Presence.close();
+		Matchmaker.close();
+		PushNotifications.close();
+		
+		User.closeCollection();
+		Game.closeCollection();
+		ExecutionContexts.close();
+	}
+}
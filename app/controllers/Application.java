@@ -1,6 +1,6 @@
 package controllers;
 
-import java.io.IOException;
+import java.io.InputStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
@@ -8,7 +8,13 @@ import java.util.Random;
 import play.*;
 import play.libs.Json;
 import play.mvc.*;
+import play.libs.F.Function;
+import play.libs.F.Function0;
+import play.libs.F.Promise;
+import util.ExecutionContexts;
 import util.GameConfiguration;
+import util.Metrics;
+import util.JsonArrayInputStream;
 import views.html.*;
 import views.html.defaultpages.error;
 
@@ -24,6 +30,9 @@ import models.*;
  * 
  * See conf/routes for the url and parameter encoding scheme.
  * 
+ * Actions that block on Facebook or the database return promises and run on the thread pools 
+ * of util.ExecutionContexts, actions answered from memory return their result directly.
+ * 
  * @author Niklas Klügel
  *
  */
@@ -51,34 +60,35 @@ public class Application extends Controller {
      * @param latitude - user position
      * @return
      */
-    public static Result loginUser(String facebookAuthToken, String googleCDSToken, Double longitude, Double latitude) {
-    	Result ret = null;
-    	
+    public static Promise<Result> loginUser(final String facebookAuthToken, final String googleCDSToken, final Double longitude, final Double latitude) {
     	Logger.info("looking up user...");
     	
-    	User user = User.updateUserProfileFromLoginCredentials(facebookAuthToken, googleCDSToken, longitude, latitude);
-    	
-    	if(user != null) {
-    		ObjectNode json = Json.newObject();
-    		json.put("type", "server");
-    		json.put("subtype", "login");
-    		
-    		try {
-				
-    			user.sendMessage(json);
-				
-			} catch (IOException e) {
-				e.printStackTrace();
+    	// the Facebook request and the database requests run on their own thread pools
+    	return Promise.promise(new Function0<FacebookAppClient.LoginProfile>() {
+			@Override
+			public FacebookAppClient.LoginProfile apply() {
+				return User.requestLoginProfile(facebookAuthToken);
 			}
-    		
-    		ret = ok("logged in user"+user.name);
-    	} else {
-    		ret = badRequest("Error logging user in!");
-    	}
-    	
-    	Logger.info("User is:\n "+user.toString());
-    	
-    	return ret;
+		}, ExecutionContexts.facebook()).map(new Function<FacebookAppClient.LoginProfile, Result>() {
+			@Override
+			public Result apply(FacebookAppClient.LoginProfile loginProfile) {
+				Result ret = null;
+
+				User user = User.updateUserProfileFromLoginProfile(loginProfile, facebookAuthToken, googleCDSToken, longitude, latitude);
+
+				if(user != null) {
+					user.sendMessage(PushMessages.createLoginMessage());
+
+					ret = ok("logged in user"+user.name);
+				} else {
+					ret = badRequest("Error logging user in!");
+				}
+
+				Logger.info("User is:\n "+user);
+
+				return ret;
+			}
+		}, ExecutionContexts.database());
     }
     
     /**
@@ -88,77 +98,128 @@ public class Application extends Controller {
      * @param facebookID
      * @return
      */
-    public static Result getNearbyUsers(String facebookID) {
-    	// sanity check: only allow a participant user to do a request
-    	// limit number of returned results
+    public static Promise<Result> getNearbyUsers(final String facebookID) {
+    	return Promise.promise(new Function0<Result>() {
+			@Override
+			public Result apply() {
+				// sanity check: only allow a participant user to do a request
+				// limit number of returned results
+
+				Result ret;
+
+				Logger.info("Requesting users...");
+
+				User user = User.findByFacebookID(facebookID);
+
+				if(user != null && user.participatesInGame) {
+					Iterable<User> users = User.findUsersNearby(user.loc, GameConfiguration.MaxDistanceOfUserForNearbyUsers, GameConfiguration.MaxNumberOfReturnedUsers);
+
+					if(users != null) {
+						ObjectNode searchResult = Json.newObject();
+						ArrayNode userArray = searchResult.arrayNode();
+
+						for(User u: users) {
+							if(!u.facebookID.equals(user.facebookID) ){
+								ObjectNode userNode = Json.newObject();
+
+								userNode.put("user",u.name);
+								userNode.put("facebookID", u.facebookID);
+								userNode.put("longitude", u.loc[0]);
+								userNode.put("latitude", u.loc[1]);
+
+								userArray.add(userNode);
+							}
+						}
+
+						// just add an array, if we actually have found users, otherwise just send back an empty json
+						if(userArray.size() > 0){
+							searchResult.put("users", userArray);
+						}
+
+						ret = ok(searchResult);
+					} else {
+
+
+						ret = badRequest("Could not find other users");
+					}
+
+				} else {
+					ret = badRequest("User not recognized");
+				}
+
+				return ret;
+			}
+		}, ExecutionContexts.database());
+    }
+
+    /**
+     * Returns the k users with the highest score and the rank of the given user,
+     * answered by the in-memory Leaderboard.
+     * 
+     * @param facebookID
+     * @param k - number of top users, at most MaxNumberOfLeaderboardUsers
+     * @return
+     */
+    public static Result getLeaderboard(String facebookID, Integer k) {
+    	Leaderboard leaderboard = Leaderboard.getInstance();
     	
-    	Result ret;
+    	ObjectNode json = Json.newObject();
+    	json.put("type", "server");
+    	json.put("subtype", "leaderboard");
     	
-    	Logger.info("Requesting users...");
+    	ArrayNode top = json.putArray("top");
+    	int rank = 1;
     	
-    	User user = User.findByFacebookID(facebookID);
+    	for(Leaderboard.Entry entry : leaderboard.top(Math.max(0, Math.min(k, GameConfiguration.MaxNumberOfLeaderboardUsers)))) {
+    		ObjectNode entryJson = top.addObject();
+    		entryJson.put("rank", rank++);
+    		entryJson.put("facebookID", entry.facebookID);
+    		entryJson.put("name", entry.name);
+    		entryJson.put("score", entry.score);
+    	}
     	
-    	if(user != null && user.participatesInGame) {
-    		Iterable<User> users = User.findUsersNearby(user.loc, GameConfiguration.MaxDistanceOfUserForNearbyUsers, GameConfiguration.MaxNumberOfReturnedUsers);
-    		
-    		if(users != null) {
-    			ObjectNode searchResult = Json.newObject();
-    			ArrayNode userArray = searchResult.arrayNode();
-    			
-    	    	for(User u: users) {
-    	    		if(!u.facebookID.equals(user.facebookID) ){
-    	    			ObjectNode userNode = Json.newObject();
-    	    			
-    	    			userNode.put("user",u.name);
-    	    			userNode.put("facebookID", u.facebookID);
-    	    			userNode.put("longitude", u.loc[0]);
-    	    			userNode.put("latitude", u.loc[1]);
-    	    			
-    	    			userArray.add(userNode);
-    	    		}
-    	    	}
-    	    	
-    	    	// just add an array, if we actually have found users, otherwise just send back an empty json
-    	    	if(userArray.size() > 0){
-    	    		searchResult.put("users", userArray);
-    	    	}
-    	    	
-    	    	ret = ok(searchResult);    			
-    		} else {
-    			
-    			
-    			ret = badRequest("Could not find other users");
-    		}
-    		
-    	} else {
-    		ret = badRequest("User not recognized");
+    	Leaderboard.Entry user = leaderboard.get(facebookID);
+    	
+    	if(user != null) {
+    		json.put("rank", leaderboard.rank(facebookID));
+    		json.put("score", user.score);
     	}
     	
-    	return ret;
+    	json.put("wins", GameStatistics.getInstance().getNumberOfWins(facebookID));
+    	json.put("rankedUsers", leaderboard.size());
+    	
+    	return ok(json);
     }
-
+    
     /**
-     * Updates the database entry of that user with the new location.
+     * Updates the location of that user, the database entry is written 
+     * asynchronously (see LocationUpdates). A user whose session expired
+     * has to log in again (401 Unauthorized).
      * 
      * @param facebookID
      * @param longitude
      * @param latitude
      * @return
      */
-    public static Result updateUserLocation(String facebookID, Double longitude, Double latitude) {
-    	Result ret;    	    
+    public static Promise<Result> updateUserLocation(final String facebookID, final Double longitude, final Double latitude) {
+    	return Promise.promise(new Function0<Result>() {
+			@Override
+			public Result apply() {
+				Result ret;
 
-    	User user = User.findByFacebookID(facebookID);
-    	if(user != null) {
-    		user.updateLocation(longitude, latitude);
-    		Logger.info("Updated user position: "+facebookID+" > "+longitude+" , "+latitude);
-    		
-    		ret = ok();
-    	} else {
-    		ret = badRequest("User does not exist!");
-    	}
-    	
-    	return ret;
+				// a location update is activity, it keeps the session of the user alive
+				if(!Presence.getInstance().touch(facebookID)) {
+					ret = status(UNAUTHORIZED, "Please log in again");
+
+				} else if(LocationUpdates.getInstance().submit(facebookID, longitude, latitude)) {
+					ret = ok();
+				} else {
+					ret = badRequest("User does not exist!");
+				}
+
+				return ret;
+			}
+		}, ExecutionContexts.database());
     }
     
     /**
@@ -170,45 +231,58 @@ public class Application extends Controller {
      * 
      * The message sending logic is part of the game object.
      * 
+     * Depending on GameConfiguration.MatchmakingMode the opponent is a nearby friend or,
+     * with open matchmaking, any nearby player waiting for a game; if nobody is waiting,
+     * the user waits for the next request (202 Accepted). A user whose session expired
+     * has to log in again (401 Unauthorized), she/he is neither matched nor queued.
+     * 
      * @param facebookID
      * @return
      */
     
-    public static Result requestNewGame(String facebookID){
-    	Result ret;
-    	
-    	User user = User.findByFacebookID(facebookID);
-    	
-    	if(user != null){
-    		Logger.info("User requested new game: "+facebookID);
-    		
-    		User opponent = Game.findOpponent(user);
-    		
-    		if(opponent != null) {
-	    		// this will not only add a new Game object to the database but also communicate
-	    		// the request via Google Cloud Messaging to the opponents
-    			
-	    		try {
-					Game newGame = Game.createAndStartNewGame(user, opponent);
-					ret = ok();
-					
-				} catch (IOException e) {
-					ret = badRequest("Some error occured");
-					e.printStackTrace();
+    public static Promise<Result> requestNewGame(final String facebookID) {
+    	return Promise.promise(new Function0<Result>() {
+			@Override
+			public Result apply() {
+				Result ret;
+
+				if(!Presence.getInstance().touch(facebookID)) {
+					return status(UNAUTHORIZED, "Please log in again");
 				}
-	    		
-	    		
-	    		
-    		} else {
-    			ret = badRequest("No opponent found!");
-    		}
-    		
-    		
-    	} else{
-    		ret = badRequest("User does not exist!");
-    	}
-    	
-    	return ret;
+
+				User user = User.findByFacebookID(facebookID);
+
+				if(user != null){
+					Logger.info("User requested new game: "+facebookID);
+
+					boolean open = GameConfiguration.MatchmakingMode.equals(Matchmaker.ModeOpen);
+
+					User opponent = open ? Matchmaker.getInstance().match(user) : Game.findOpponent(user);
+
+					if(opponent != null) {
+						// this will not only add a new Game object to the database but also communicate
+						// the request via Google Cloud Messaging to the opponents
+
+						Game.createAndStartNewGame(user, opponent);
+						ret = ok();
+
+					} else if(open) {
+						// the user is paired with the next player requesting a game nearby,
+						// both are sent the game request then
+						ret = status(ACCEPTED, "Waiting for an opponent");
+
+					} else {
+						ret = badRequest("No opponent found!");
+					}
+
+
+				} else{
+					ret = badRequest("User does not exist!");
+				}
+
+				return ret;
+			}
+		}, ExecutionContexts.database());
     }
     
     /**
@@ -220,30 +294,28 @@ public class Application extends Controller {
      * @param facebookID
      * @return
      */
-    public static Result abortGame(String gameID, String facebookID){
-    	Result ret;
-    	
-    	Game game = Game.findByID(gameID);
-    	
-    	if(game != null){
-    		
-    		if(!game.isAborted()){
-    			try {
-					game.abort(facebookID);
+    public static Promise<Result> abortGame(final String gameID, final String facebookID) {
+    	return Promise.promise(new Function0<Result>() {
+			@Override
+			public Result apply() {
+				Result ret;
+
+				Game game = Game.abort(gameID, facebookID);
+
+				// the game may just not be in the right state for this action (anymore), e.g. aborted
+				if(game == null) {
+					game = Game.findByID(gameID);
+				}
+
+				if(game != null){
 					ret = ok();
-					
-				} catch (IOException e) {
-					ret = badRequest("Some error occured");
-					e.printStackTrace();
+				} else {
+					ret = badRequest("Game does not exist!");
 				}
-    		}
-    		
-    		ret = ok();
-    	} else {
-    		ret = badRequest("Game does not exist!");
-    	}
-    	
-    	return ret;
+
+				return ret;
+			}
+		}, ExecutionContexts.database());
     }
     
     /**
@@ -255,30 +327,28 @@ public class Application extends Controller {
      * @param facebookID
      * @return
      */
-    public static Result acceptGame(String gameID, String facebookID) {
-    	Result ret;
-    	
-    	Game game = Game.findByID(gameID);
-    	
-    	if(game != null){
-    		
-    		if(!game.isAborted()){
-    			try {
-					game.accept(facebookID);
+    public static Promise<Result> acceptGame(final String gameID, final String facebookID) {
+    	return Promise.promise(new Function0<Result>() {
+			@Override
+			public Result apply() {
+				Result ret;
+
+				Game game = Game.accept(gameID, facebookID);
+
+				// the game may just not be in the right state for this action (anymore), e.g. aborted
+				if(game == null) {
+					game = Game.findByID(gameID);
+				}
+
+				if(game != null){
 					ret = ok();
-					
-				} catch (IOException e) {
-					ret = badRequest("Some error occured");
-					e.printStackTrace();
+				} else {
+					ret = badRequest("Game does not exist!");
 				}
-    		}
-    		
-    		ret = ok();
-    	} else {
-    		ret = badRequest("Game does not exist!");
-    	}
-    	
-    	return ret;
+
+				return ret;
+			}
+		}, ExecutionContexts.database());
     }
     
     /**
@@ -293,30 +363,28 @@ public class Application extends Controller {
      * @return
      */
     
-    public static Result interactionInGame(String gameID, String facebookID){
-    	Result ret;
-    	
-    	Game game = Game.findByID(gameID);
-    	
-    	if(game != null){
-    		
-    		if(!game.isAborted()){
-    			try {
-					game.socialInteraction(facebookID);
+    public static Promise<Result> interactionInGame(final String gameID, final String facebookID) {
+    	return Promise.promise(new Function0<Result>() {
+			@Override
+			public Result apply() {
+				Result ret;
+
+				Game game = Game.socialInteraction(gameID, facebookID);
+
+				// the game may just not be in the right state for this action (anymore), e.g. aborted
+				if(game == null) {
+					game = Game.findByID(gameID);
+				}
+
+				if(game != null){
 					ret = ok();
-					
-				} catch (IOException e) {
-					ret = badRequest("Some error occured");
-					e.printStackTrace();
+				} else {
+					ret = badRequest("Game does not exist!");
 				}
-    		}
-    		
-    		ret = ok();
-    	} else {
-    		ret = badRequest("Game does not exist!");
-    	}
-    	
-    	return ret;
+
+				return ret;
+			}
+		}, ExecutionContexts.database());
     }
     
     /**
@@ -329,37 +397,188 @@ public class Application extends Controller {
      * @param recipentFacebookID
      * @return
      */
-    public static Result poke(String senderFacebookID, String recipentFacebookID){
-    	Result ret;
+    public static Promise<Result> poke(final String senderFacebookID, final String recipentFacebookID) {
+    	return Promise.promise(new Function0<Result>() {
+			@Override
+			public Result apply() {
+				Result ret;
+
+				User sender = User.findByFacebookID(senderFacebookID);
+				User recipent= User.findByFacebookID(recipentFacebookID);
+
+				if(sender != null && recipent != null && recipent.participatesInGame){
+					// we can do some other logic here, for now, we just send a
+					// poke message without further testing (test if nearby, is friend, etc)
+					// the message will be kept alive for one hour in the GCM System
+					// and therefore delivered as soon as the recipent is online (within this hour)
+
+					Logger.info("poke > " + sender.name + " -> " + recipent.name);
+
+					if(recipent.sendMessageCached(PushMessages.createPokeMessage(sender), 3600)) {
+						ret = ok();
+					} else {
+						ret = badRequest();
+					}
+
+				} else {
+					ret = badRequest("User does not exist!");
+				}
+
+				return ret;
+			}
+		}, ExecutionContexts.database());
+    }
+    
+    /**
+     * Returns a page of the game history, newest first.
+     * 
+     * @param after - cursor returned with the previous page as "next", empty for the first page
+     * @param limit - number of games, at most MaxNumberOfGamesPerPage
+     * @return
+     */
+    public static Promise<Result> getGames(final String after, final Integer limit) {
+    	return Promise.promise(new Function0<Result>() {
+			@Override
+			public Result apply() {
+				int pageSize = Math.max(1, Math.min(limit, GameConfiguration.MaxNumberOfGamesPerPage));
+
+				List<Game> games;
+				try {
+					games = Game.findPage(after, pageSize);
+				} catch (IllegalArgumentException e) {
+					return badRequest("Invalid cursor");
+				}
+
+				ObjectNode json = Json.newObject();
+				json.put("type", "server");
+				json.put("subtype", "games");
+
+				ArrayNode gamesJson = json.putArray("games");
+				for(Game game : games) {
+					gamesJson.add(Json.toJson(game));
+				}
+
+				// a full page may be followed by more games
+				if(games.size() == pageSize) {
+					json.put("next", Game.cursorOf(games.get(games.size() - 1)));
+				} else {
+					json.putNull("next");
+				}
+
+				return ok(json);
+			}
+		}, ExecutionContexts.database());
+    }
+    
+    /**
+     * Exports all games as JSON array, newest first. 
+     * The response is streamed from the database cursor in chunks, 
+     * so memory use does not depend on the number of games.
+     * 
+     * The stream is read on the database pool (ok(InputStream) would read it, and so fetch 
+     * the batches of the cursor, on Play's default dispatcher).
+     * 
+     * @return
+     */
+    public static Result exportGames() {
+    	InputStream games = new JsonArrayInputStream(Game.findAllGamesNewestFirst().iterator(), null);
+    	
+    	final play.api.mvc.SimpleResult result = play.api.mvc.Results$.MODULE$.Ok().chunked(
+    			play.api.libs.iteratee.Enumerator$.MODULE$.fromStream(games, 8192, ExecutionContexts.database()),
+    			play.core.j.JavaResults.writeBytes());
     	
-    	User sender = User.findByFacebookID(senderFacebookID);
-    	User recipent= User.findByFacebookID(recipentFacebookID);
+    	response().setContentType("application/json; charset=utf-8");
     	
-    	if(sender != null && recipent != null && recipent.participatesInGame){
-    		// we can do some other logic here, for now, we just send a 
-    		// poke message without further testing (test if nearby, is friend, etc)
-    		// the message will be kept alive for one hour in the GCM System
-    		// and therefore delivered as soon as the recipent is online (within this hour)
-    		
-    		Logger.info("poke > " + sender.name + " -> " + recipent.name);
-    		
-    		try {
-				recipent.sendMessageCached(PushMessages.createPokeMessage(sender), 3600);
-				
-				ret = ok();
-				
-			} catch (IOException e) {
-				e.printStackTrace();
-				
-				ret = badRequest(); 
-				
+    	return new SimpleResult() {
+			@Override
+			public play.api.mvc.SimpleResult getWrappedSimpleResult() {
+				return result;
 			}
-    		
-    	} else {
-    		ret = badRequest("User does not exist!");
-    	}
+		};
+    }
+    
+    /**
+     * Returns statistics of the server's internal components, e.g. for monitoring:
+     * the push delivery queue, the friend list cache and the location updates.
+     * 
+     * @return
+     */
+    public static Result statistics() {
+    	ObjectNode json = Json.newObject();
+    	
+    	PushNotifications push = PushNotifications.getInstance();
+    	
+    	ObjectNode pushJson = json.putObject("push");
+    	pushJson.put("queueDepth", push.getQueueDepth());
+    	pushJson.put("sent", push.getSentCount());
+    	pushJson.put("failed", push.getFailedCount());
+    	pushJson.put("dropped", push.getDroppedCount());
+    	pushJson.put("retries", push.getRetryCount());
+    	pushJson.put("requests", push.getRequestCount());
+    	pushJson.put("multicastRequests", push.getMulticastRequestCount());
+    	pushJson.put("averageSendLatencyInMillis", push.getAverageSendLatencyInMillis());
+    	pushJson.put("maxSendLatencyInMillis", push.getMaxSendLatencyInMillis());
+    	
+    	FriendListCache friendListCache = FriendListCache.getInstance();
+    	
+    	ObjectNode cacheJson = json.putObject("friendListCache");
+    	cacheJson.put("size", friendListCache.size());
+    	cacheJson.put("hits", friendListCache.getHitCount());
+    	cacheJson.put("misses", friendListCache.getMissCount());
+    	
+    	LocationUpdates locationUpdates = LocationUpdates.getInstance();
+    	
+    	ObjectNode locationJson = json.putObject("locationUpdates");
+    	locationJson.put("accepted", locationUpdates.getAcceptedCount());
+    	locationJson.put("dropped", locationUpdates.getDroppedCount());
+    	locationJson.put("written", locationUpdates.getWrittenCount());
+    	locationJson.put("pending", locationUpdates.getPendingCount());
+    	
+    	return ok(json);
+    }
+    
+    /**
+     * Returns the latency histograms and error counts of all routes and dependencies (see util.Metrics)
+     * and the statistics of the server's internal components, in the Prometheus text format.
+     * 
+     * @return
+     */
+    public static Result metrics() {
+    	StringBuilder out = new StringBuilder();
+    	
+    	Metrics.writeTo(out);
+    	
+    	PushNotifications push = PushNotifications.getInstance();
+    	Metrics.writeTo(out, "push_queue_depth", "gauge", push.getQueueDepth());
+    	Metrics.writeTo(out, "push_sent_total", "counter", push.getSentCount());
+    	Metrics.writeTo(out, "push_failed_total", "counter", push.getFailedCount());
+    	Metrics.writeTo(out, "push_dropped_total", "counter", push.getDroppedCount());
+    	Metrics.writeTo(out, "push_retries_total", "counter", push.getRetryCount());
+    	Metrics.writeTo(out, "push_requests_total", "counter", push.getRequestCount());
+    	Metrics.writeTo(out, "push_multicast_requests_total", "counter", push.getMulticastRequestCount());
+    	
+    	FriendListCache friendListCache = FriendListCache.getInstance();
+    	Metrics.writeTo(out, "friend_list_cache_size", "gauge", friendListCache.size());
+    	Metrics.writeTo(out, "friend_list_cache_hits_total", "counter", friendListCache.getHitCount());
+    	Metrics.writeTo(out, "friend_list_cache_misses_total", "counter", friendListCache.getMissCount());
+    	
+    	LocationUpdates locationUpdates = LocationUpdates.getInstance();
+    	Metrics.writeTo(out, "location_updates_accepted_total", "counter", locationUpdates.getAcceptedCount());
+    	Metrics.writeTo(out, "location_updates_dropped_total", "counter", locationUpdates.getDroppedCount());
+    	Metrics.writeTo(out, "location_updates_written_total", "counter", locationUpdates.getWrittenCount());
+    	Metrics.writeTo(out, "location_updates_pending", "gauge", locationUpdates.getPendingCount());
+    	
+    	Metrics.writeTo(out, "game_sessions", "gauge", GameSessionStore.getInstance().size());
+    	Metrics.writeTo(out, "nearby_users_index_size", "gauge", UserLocationIndex.getInstance().size());
+    	Metrics.writeTo(out, "leaderboard_size", "gauge", Leaderboard.getInstance().size());
+    	Metrics.writeTo(out, "matchmaking_waiting_players", "gauge", Matchmaker.getInstance().size());
+    	Metrics.writeTo(out, "social_graph_users", "gauge", SocialGraph.getInstance().size());
+    	Metrics.writeTo(out, "presence_online_users", "gauge", Presence.getInstance().size());
+    	Metrics.writeTo(out, "presence_expired_total", "counter", Presence.getInstance().getExpiredCount());
+    	
+    	response().setContentType("text/plain; version=0.0.4");
     	
-    	return ret;
+    	return ok(out.toString());
     }
     
 }
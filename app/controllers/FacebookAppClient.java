@@ -1,14 +1,15 @@
 package controllers;
 
-import java.util.Iterator;
 import java.util.List;
 
 import play.Logger;
+import util.GameConfiguration;
+import util.Metrics;
 
 import com.restfb.Connection;
 import com.restfb.DefaultFacebookClient;
 import com.restfb.FacebookClient;
-import com.restfb.types.Post;
+import com.restfb.Parameter;
 import com.restfb.types.User;
 
 /**
@@ -23,6 +24,9 @@ import com.restfb.types.User;
  * We are using public data of the user's friends only, since otherweise we would have to
  * get access tokens on their behalf as well.
  * 
+ * On login, the profile of a user is requested every time, her/his friends only if the
+ * friend list is not fresh anymore (see models.FriendListCache).
+ * 
  *  
  * @author Niklas Klügel
  *
@@ -30,44 +34,71 @@ import com.restfb.types.User;
 
 public class FacebookAppClient {
 	
+	// only request the fields we actually use
+	private static final Parameter profileFields = Parameter.with("fields", "id,name");
+	
+	/**
+	 * The data of a user requested from Facebook on login
+	 */
+	public static class LoginProfile {
+		public final User user;
+		
+		// null if the friends could not be requested
+		public final List<User> friends;
+		
+		public LoginProfile(User user, List<User> friends) {
+			this.user = user;
+			this.friends = friends;
+		}
+	}
+	
+	/**
+	 * Creates a client for the user's access token, it talks to the Graph API endpoint 
+	 * set in GameConfiguration (e.g. a local stand-in for load tests) if there is one.
+	 * @param accessToken
+	 * @return
+	 */
+	private static FacebookClient newClient(String accessToken) {
+		final String endpoint = GameConfiguration.FacebookGraphEndpointUrl;
+		
+		if(endpoint == null) {
+			return new DefaultFacebookClient(accessToken);
+		}
+		
+		return new DefaultFacebookClient(accessToken) {
+			@Override
+			protected String getFacebookGraphEndpointUrl() {
+				return endpoint;
+			}
+			
+			@Override
+			protected String getFacebookReadOnlyEndpointUrl() {
+				return endpoint;
+			}
+		};
+	}
+	
 	/**
 	 * Uses access token send to the web service to request user data
 	 * and returns the user's friends.
 	 * 
-	 * This method will also output all data to the log, so we know what
-	 * data we get.
-	 * 
 	 * @param accessToken
 	 * @return
 	 */
 	
 	public static List<User> getFriendsOfUser(String accessToken) {
-		FacebookClient fbc = new DefaultFacebookClient(accessToken);
+		final FacebookClient fbc = newClient(accessToken);
 		
-		Connection<User> myFriends = fbc.fetchConnection("me/friends", User.class);				
-		Connection<Post> myFeed = fbc.fetchConnection("me/feed", Post.class);
+		Connection<User> myFriends = Metrics.facebook("getFriendsOfUser", new Metrics.Call<Connection<User>>() {
+			@Override
+			public Connection<User> call() {
+				return fbc.fetchConnection("me/friends", User.class, profileFields);
+			}
+		});
 
 		Logger.info("Count of my friends: " + myFriends.getData().size());
-
-		if(myFeed.getData().size() > 0) {
-			Logger.info("First item in my feed: " + myFeed.getData().get(0));
-		}		
-
-		User thatsMe = fbc.fetchObject("me", User.class);
-		
-		Logger.info("User: "+thatsMe);
-		
-		List<User> usersFriends = myFriends.getData();
-		
-		
-			for(User myBestestFriend: usersFriends) {
-				Logger.info("---");
-				Logger.info("his/her bestest friend is "+ myBestestFriend.getName() + " " +myBestestFriend.getFirstName() + " "+myBestestFriend.getLastName()+ " -- "+myBestestFriend.getId());
-			}			
-		
 		
-		return usersFriends;
-				
+		return myFriends.getData();
 	}
 	
 	/**
@@ -77,10 +108,14 @@ public class FacebookAppClient {
 	 */
 	
 	public static User getUser(String accessToken) {
-		FacebookClient fbc = new DefaultFacebookClient(accessToken);
-		User facebookUser = fbc.fetchObject("me", User.class);
+		final FacebookClient fbc = newClient(accessToken);
 		
-		return facebookUser;
+		return Metrics.facebook("getUser", new Metrics.Call<User>() {
+			@Override
+			public User call() {
+				return fbc.fetchObject("me", User.class, profileFields);
+			}
+		});
 	}
 
 }
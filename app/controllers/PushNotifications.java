@@ -1,71 +1,545 @@
 package controllers;
 
 import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import play.Logger;
 import util.GameConfiguration;
+import util.Metrics;
 
 import com.google.android.gcm.server.*;
-import com.google.android.gcm.server.Message.Builder;
 
 
 
 /**
  * This class is used for Push communication to Android devices using
  * Google Cloud Messaging.
- * 
+ *
  * More info:
  * http://developer.android.com/google/gcm/index.html
- * 
+ *
  * It uses the google gcm framework (see build.sbt for dependencies):
  * https://code.google.com/p/gcm/
- * 
+ *
+ * Messages are not sent on the calling (request) thread: they are put into a bounded queue
+ * and delivered by a pool of worker threads. Failed deliveries are retried with exponential backoff,
+ * if the queue is full, messages are dropped. Queue size, pool size and retry behaviour are set in
+ * GameConfiguration.
+ *
+ * Identical messages (same payload and time to live) are sent as one GCM multicast request:
+ * messages to a list of devices are queued directly, and messages to single devices that are queued
+ * within a short coalescing window are collected into one batch before being sent. A batch is queued
+ * at the end of its window, or right away once it reaches the multicast limit.
+ *
  * @author Niklas Klügel
  *
  */
 
 public class PushNotifications {
 
-	private static PushNotifications instance;
-	
+	// created on application start, see open()
+	private static volatile PushNotifications instance;
+
 	/**
-	 * Simple singleton pattern, use this method to 
+	 * Simple singleton pattern, use this method to
 	 * receive a (shared) instance of PushNotifications
 	 * @return
 	 */
 	public static PushNotifications getInstance() {
-		if(instance == null) {
-			instance = new PushNotifications();
-		} 		
-		return instance;
+		PushNotifications current = instance;
+
+		if(current == null) {
+			throw new IllegalStateException("PushNotifications is not open, the application has not been started");
+		}
+
+		return current;
 	}
 
-	
-	private Sender sender;	
-	
+	/**
+	 * Creates the queue and starts its workers, to be called on application start
+	 */
+	public static void open() {
+		instance = new PushNotifications();
+	}
+
+	/**
+	 * Delivers the queued messages and stops the workers, to be called on application stop
+	 */
+	public static void close() {
+		PushNotifications current = instance;
+
+		if(current != null) {
+			current.shutdown();
+			instance = null;
+		}
+	}
+
+
+	private final Sender sender;
+
+	// delivers the queued messages
+	private final ThreadPoolExecutor workers;
+
+	// flushes coalesced batches and re-queues failed messages once their backoff time is over
+	private final ScheduledExecutorService scheduler;
+
+	// batches of identical messages waiting for the end of their coalescing window, by payload and ttl
+	private final Map<String, Batch> pendingBatches = new HashMap<String, Batch>();
+
+	private final Random random = new Random();
+
+	// statistics
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong retryCount = new AtomicLong();
+	private final AtomicLong sendRequestCount = new AtomicLong();
+	private final AtomicLong multicastRequestCount = new AtomicLong();
+	private final AtomicLong totalSendTimeInNanos = new AtomicLong();
+	private final AtomicLong maxSendTimeInNanos = new AtomicLong();
+
 	private PushNotifications() {
-		sender = new Sender(GameConfiguration.googleAppKey);
+		sender = new Sender(GameConfiguration.googleAppKey) {
+			// GCM endpoint set in GameConfiguration (e.g. a local stand-in for load tests) if there is one
+			@Override
+			protected HttpURLConnection getConnection(String url) throws IOException {
+				String endpoint = GameConfiguration.GcmSendEndpointUrl;
+				return super.getConnection(endpoint != null ? endpoint : url);
+			}
+		};
+
+		workers = new ThreadPoolExecutor(GameConfiguration.PushWorkerThreads, GameConfiguration.PushWorkerThreads,
+				0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(GameConfiguration.PushQueueCapacity),
+				new NamedThreadFactory("push-worker"));
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("push-scheduler"));
 	}
-	
+
 	/**
-	 * Sends a message using Google Cloud Messaging Service
+	 * Queues a message for delivery using Google Cloud Messaging Service,
+	 * returns immediately.
+	 *
 	 * @param deviceToken - the token received from the GCM registrar
 	 * 						on Android
 	 * @param message - String message to be sent
+	 * @param ttl - time to live of the message in GCM (seconds)
+	 * @return false if the message was dropped because the queue is full. A message waiting in a
+	 * 		   coalescing window may still be dropped when its batch is queued, this is only counted
+	 * 		   (see getDroppedCount).
+	 */
+	public boolean sendMessage(String deviceToken, String message, int ttl) {
+		return sendMessage(Collections.singletonList(deviceToken), message, ttl);
+	}
+
+	/**
+	 * Queues the same message for delivery to several devices, they will be
+	 * addressed by as few GCM multicast requests as possible. Returns immediately.
+	 *
+	 * @param deviceTokens - the tokens received from the GCM registrar
+	 * 						on Android
+	 * @param message - String message to be sent
+	 * @param ttl - time to live of the message in GCM (seconds)
+	 * @return false if the message was dropped because the queue is full
+	 */
+	public boolean sendMessage(List<String> deviceTokens, String message, int ttl) {
+		Metrics.Timer timer = Metrics.push("sendMessage");
+		try {
+			boolean queued = queue(deviceTokens, message, ttl);
+
+			if(!queued) {
+				timer.failed();
+			}
+			return queued;
+
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private boolean queue(List<String> deviceTokens, String message, int ttl) {
+		// a message to several devices is a multicast request of its own, it does not wait for others
+		if(GameConfiguration.PushCoalescingWindowInMillis <= 0 || deviceTokens.size() != 1) {
+			boolean queued = true;
+
+			for(List<String> tokens : partition(deviceTokens)) {
+				queued &= enqueue(new Delivery(tokens, buildMessage(message, ttl), 0));
+			}
+			return queued;
+		}
+
+		if(workers.getQueue().remainingCapacity() == 0) {
+			droppedCount.addAndGet(deviceTokens.size());
+			Logger.warn("Push queue is full, dropped message for devices " + deviceTokens);
+			return false;
+		}
+
+		String key = ttl + ":" + message;
+
+		synchronized(pendingBatches) {
+			Batch batch = pendingBatches.get(key);
+
+			if(batch == null) {
+				batch = new Batch(key, message, ttl);
+				pendingBatches.put(key, batch);
+
+				scheduleFlush(batch);
+			}
+
+			batch.deviceTokens.add(deviceTokens.get(0));
+
+			// do not wait for the window to end if a request cannot hold more devices
+			if(batch.deviceTokens.size() >= GameConfiguration.PushMaxMulticastSize) {
+				pendingBatches.remove(key);
+				return enqueue(batch.toDelivery());
+			}
+		}
+
+		// best effort: the batch is queued when the window ends, a drop then is only counted (see getDroppedCount)
+		return true;
+	}
+
+	private Message buildMessage(String message, int ttl) {
+		// when the time to live is set to 0 , Google does not throttle the
+		// messages, but they are not stored in between and may get lost
+		return new Message.Builder()
+				  //.collapseKey("1")
+				  .timeToLive(ttl)
+				  //.delayWhileIdle(true)
+				  .addData("message", message)
+				  .build();
+	}
+
+	private void scheduleFlush(final Batch batch) {
+		try {
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized(pendingBatches) {
+						// the batch may have been sent already because it was full
+						if(pendingBatches.get(batch.key) != batch) {
+							return;
+						}
+						pendingBatches.remove(batch.key);
+					}
+					enqueue(batch.toDelivery());
+				}
+			}, GameConfiguration.PushCoalescingWindowInMillis, TimeUnit.MILLISECONDS);
+
+		} catch (RejectedExecutionException e) {
+			// shutting down, send right away
+			pendingBatches.remove(batch.key);
+			enqueue(batch.toDelivery());
+		}
+	}
+
+	private List<List<String>> partition(List<String> deviceTokens) {
+		List<List<String>> partitions = new ArrayList<List<String>>();
+
+		for(int i = 0; i < deviceTokens.size(); i += GameConfiguration.PushMaxMulticastSize) {
+			partitions.add(deviceTokens.subList(i, Math.min(deviceTokens.size(), i + GameConfiguration.PushMaxMulticastSize)));
+		}
+		return partitions;
+	}
+
+	private boolean enqueue(Delivery delivery) {
+		try {
+			workers.execute(delivery);
+			return true;
+
+		} catch (RejectedExecutionException e) {
+			// queue is full or we are shutting down
+			droppedCount.addAndGet(delivery.deviceTokens.size());
+			Logger.warn("Push queue is full, dropped message for devices " + delivery.deviceTokens);
+			return false;
+		}
+	}
+
+	/**
+	 * Stops accepting messages and waits for queued messages to be delivered,
+	 * pending retries are discarded, see close().
+	 */
+	private void shutdown() {
+		scheduler.shutdownNow();
+
+		// send what has been coalesced so far
+		synchronized(pendingBatches) {
+			for(Batch batch : pendingBatches.values()) {
+				enqueue(batch.toDelivery());
+			}
+			pendingBatches.clear();
+		}
+
+		workers.shutdown();
+
+		try {
+			if(!workers.awaitTermination(GameConfiguration.PushShutdownTimeoutInMillis, TimeUnit.MILLISECONDS)) {
+				Logger.warn("Push queue not drained on shutdown, " + workers.shutdownNow().size() + " messages dropped");
+			}
+		} catch (InterruptedException e) {
+			workers.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Number of requests to GCM waiting to be sent
 	 * @return
-	 * @throws IOException
-	 */
-	
-	  // when the time to live is set to 0 , Google does not throttle the
-	  // messages, but they are not stored in between and may get lost
-	public Result sendMessage(String deviceToken, String message, int ttl) throws IOException {
-		
-		Message msg = new Message.Builder()
-						  //.collapseKey("1")
-						  .timeToLive(ttl)
-						  //.delayWhileIdle(true)
-						  .addData("message", message)
-						  .build();
-		return this.sender.send(msg, deviceToken, 1);
-	}
-	
+	 */
+	public int getQueueDepth() {
+		return workers.getQueue().size();
+	}
+
+	/**
+	 * Number of messages (per device) dropped because the queue was full
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getSentCount() {
+		return sentCount.get();
+	}
+
+	/**
+	 * Number of messages (per device) that could not be delivered, even after retrying
+	 * @return
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	/**
+	 * Number of requests to GCM, including multicast requests
+	 * @return
+	 */
+	public long getRequestCount() {
+		return sendRequestCount.get();
+	}
+
+	/**
+	 * Number of multicast requests to GCM (addressing more than one device)
+	 * @return
+	 */
+	public long getMulticastRequestCount() {
+		return multicastRequestCount.get();
+	}
+
+	/**
+	 * Average duration of a request to GCM in milliseconds
+	 * @return
+	 */
+	public double getAverageSendLatencyInMillis() {
+		long requests = sendRequestCount.get();
+
+		return requests == 0 ? 0.0 : totalSendTimeInNanos.get() / (requests * 1000000.0);
+	}
+
+	/**
+	 * Maximum duration of a request to GCM in milliseconds
+	 * @return
+	 */
+	public double getMaxSendLatencyInMillis() {
+		return maxSendTimeInNanos.get() / 1000000.0;
+	}
+
+	private void recordSendTime(long nanos) {
+		sendRequestCount.incrementAndGet();
+		totalSendTimeInNanos.addAndGet(nanos);
+
+		long max = maxSendTimeInNanos.get();
+		while(nanos > max && !maxSendTimeInNanos.compareAndSet(max, nanos)) {
+			max = maxSendTimeInNanos.get();
+		}
+	}
+
+	/**
+	 * Backoff before the given retry: exponentially growing, capped and with some jitter
+	 * so that retries after an outage do not all hit GCM at once.
+	 *
+	 * @param attempt - number of the retry, starting at 1
+	 * @return
+	 */
+	private long backoffInMillis(int attempt) {
+		long backoff = GameConfiguration.PushRetryInitialBackoffInMillis << Math.min(attempt - 1, 20);
+		backoff = Math.min(backoff, GameConfiguration.PushRetryMaxBackoffInMillis);
+
+		synchronized(random) {
+			return backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+		}
+	}
+
+	/**
+	 * Identical messages to several devices, collected during the coalescing window
+	 */
+	private class Batch {
+		final String key;
+		final String message;
+		final int ttl;
+		final List<String> deviceTokens = new ArrayList<String>();
+
+		Batch(String key, String message, int ttl) {
+			this.key = key;
+			this.message = message;
+			this.ttl = ttl;
+		}
+
+		Delivery toDelivery() {
+			return new Delivery(deviceTokens, buildMessage(message, ttl), 0);
+		}
+	}
+
+	/**
+	 * A message to one or more devices, including its delivery attempts
+	 */
+	private class Delivery implements Runnable {
+		final List<String> deviceTokens;
+		final Message message;
+		final int attempt;
+
+		Delivery(List<String> deviceTokens, Message message, int attempt) {
+			this.deviceTokens = deviceTokens;
+			this.message = message;
+			this.attempt = attempt;
+		}
+
+		@Override
+		public void run() {
+			// devices for which the delivery failed, but can be retried
+			List<String> retry = new ArrayList<String>();
+
+			Metrics.Timer timer = Metrics.push(deviceTokens.size() == 1 ? "gcm.send" : "gcm.multicast");
+			long start = System.nanoTime();
+			try {
+				if(deviceTokens.size() == 1) {
+					Result result = sender.sendNoRetry(message, deviceTokens.get(0));
+
+					// a missing result means GCM was not reachable
+					if(result == null) {
+						timer.failed();
+						retry.addAll(deviceTokens);
+					} else {
+						handleResult(deviceTokens.get(0), result, retry);
+					}
+
+				} else {
+					multicastRequestCount.incrementAndGet();
+
+					MulticastResult multicastResult = sender.sendNoRetry(message, deviceTokens);
+
+					if(multicastResult == null) {
+						timer.failed();
+						retry.addAll(deviceTokens);
+					} else {
+						// results are in the same order as the devices
+						List<Result> results = multicastResult.getResults();
+
+						for(int i = 0; i < deviceTokens.size(); i++) {
+							handleResult(deviceTokens.get(i), results.get(i), retry);
+						}
+					}
+				}
+
+			} catch (InvalidRequestException e) {
+				timer.failed();
+
+				// e.g. an invalid API key, only server errors are worth trying again
+				if(e.getHttpStatusCode() >= 500) {
+					retry.addAll(deviceTokens);
+				} else {
+					failedCount.addAndGet(deviceTokens.size());
+					Logger.warn("GCM rejected message for devices " + deviceTokens + ": " + e.getMessage());
+				}
+
+			} catch (IOException e) {
+				timer.failed();
+				retry.addAll(deviceTokens);
+			}
+			recordSendTime(System.nanoTime() - start);
+			timer.stop();
+
+			if(!retry.isEmpty()) {
+				retry(retry);
+			}
+		}
+
+		private void handleResult(String deviceToken, Result result, List<String> retry) {
+			if(result.getMessageId() != null) {
+				sentCount.incrementAndGet();
+
+				if(result.getCanonicalRegistrationId() != null) {
+					Logger.info("GCM reported a new registration id for device " + deviceToken);
+				}
+
+			} else if(Constants.ERROR_UNAVAILABLE.equals(result.getErrorCodeName())
+					|| Constants.ERROR_INTERNAL_SERVER_ERROR.equals(result.getErrorCodeName())) {
+				retry.add(deviceToken);
+
+			} else {
+				failedCount.incrementAndGet();
+				Logger.warn("Could not deliver message to device " + deviceToken + ": " + result.getErrorCodeName());
+			}
+		}
+
+		private void retry(List<String> retryTokens) {
+			if(attempt >= GameConfiguration.PushMaxRetries) {
+				failedCount.addAndGet(retryTokens.size());
+				Logger.warn("Could not deliver message to devices " + retryTokens + ", giving up after " + attempt + " retries");
+				return;
+			}
+
+			retryCount.addAndGet(retryTokens.size());
+
+			final Delivery next = new Delivery(retryTokens, message, attempt + 1);
+			try {
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						enqueue(next);
+					}
+				}, backoffInMillis(next.attempt), TimeUnit.MILLISECONDS);
+
+			} catch (RejectedExecutionException e) {
+				// shutting down
+				droppedCount.addAndGet(retryTokens.size());
+			}
+		}
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
 }
@@ -0,0 +1,40 @@
+package models;
+
+import org.jongo.MongoCollection;
+
+import play.Logger;
+
+import com.mongodb.MongoException;
+
+/**
+ * Creates all database indexes the models rely on.
+ * 
+ * This is done once on application start (see Global), so that the models do not
+ * have to issue an ensureIndex command with every request.
+ *
+ */
+public class DatabaseIndexes {
+
+	public static void ensureIndexes() {
+		MongoCollection users = User.users();
+		
+		// 2d indices on a sphere to be able to use geospatial queries
+		users.ensureIndex("{loc: '2dsphere'}");
+		
+		// users are looked up by Facebook ID, which must identify a single user
+		try {
+			users.ensureIndex("{facebookID: 1}", "{unique: true}");
+		} catch (MongoException e) {
+			Logger.error("Could not create unique index on users.facebookID, the collection probably contains duplicate users; using a non-unique index", e);
+			users.ensureIndex("{facebookID: 1}");
+		}
+		
+		MongoCollection games = Game.games();
+		
+		// the game history is paged and exported newest first, see Game.findPage
+		games.ensureIndex("{date: -1, _id: -1}");
+		games.ensureIndex("{state: 1}");
+		
+		Logger.info("Database indexes are in place");
+	}
+}
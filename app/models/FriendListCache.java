@@ -0,0 +1,89 @@
+package models;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.GameConfiguration;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers whose friend lists have recently been requested from Facebook.
+ *
+ * Clients log in again quite often (app resume, token refresh) while friend lists hardly ever change,
+ * so as long as an entry is fresh the login skips requesting the friends and updating the friend
+ * entries in the database.
+ *
+ * Entries are keyed by Facebook ID, they expire after a configurable time and the least recently
+ * used ones are evicted once the cache is full (see GameConfiguration).
+ *
+ */
+public class FriendListCache {
+
+	private static final FriendListCache instance = new FriendListCache(GameConfiguration.FriendListCacheTTLInSeconds, GameConfiguration.FriendListCacheMaxSize);
+
+	public static FriendListCache getInstance() {
+		return instance;
+	}
+
+	// Facebook IDs of the users whose friend lists are fresh (the lists are held by the SocialGraph)
+	private final Cache<String, Boolean> friendLists;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	public FriendListCache(long ttlInSeconds, long maxSize) {
+		friendLists = CacheBuilder.newBuilder()
+				.expireAfterWrite(ttlInSeconds, TimeUnit.SECONDS)
+				.maximumSize(maxSize)
+				.build();
+	}
+
+	/**
+	 * @param facebookID
+	 * @return true if the friend list of the user has been requested recently
+	 */
+	public boolean isFresh(String facebookID) {
+		if(friendLists.getIfPresent(facebookID) != null) {
+			hitCount.incrementAndGet();
+			return true;
+		}
+
+		missCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Remembers that the friend list of a user has just been requested from Facebook
+	 *
+	 * @param facebookID
+	 */
+	public void put(String facebookID) {
+		friendLists.put(facebookID, Boolean.TRUE);
+	}
+
+	public void invalidate(String facebookID) {
+		friendLists.invalidate(facebookID);
+	}
+
+	/**
+	 * Number of logins that did not need to request the friend list
+	 * @return
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * Number of logins that requested the friend list from Facebook
+	 * @return
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long size() {
+		return friendLists.size();
+	}
+}
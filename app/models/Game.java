@@ -1,20 +1,25 @@
 package models;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
+import org.bson.types.ObjectId;
+import org.jongo.Find;
 import org.jongo.MongoCollection;
 
 import play.Configuration;
 import play.Logger;
 import uk.co.panaxiom.playjongo.PlayJongo;
 import util.GameConfiguration;
+import util.Metrics;
 import util.Util;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 
 
 /**
@@ -31,8 +36,10 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
  */
 
 public class Game {
-	// used by Jongo to map JVM objects to database objects
+	// used by Jongo to map JVM objects to database objects;
+    // stored as an ObjectId, so queries by ID have to pass an ObjectId as well
     @JsonProperty("_id")
+    @org.jongo.marshall.jackson.oid.ObjectId
     public String id;
     
 	
@@ -63,14 +70,18 @@ public class Game {
     
     private String state = StateInitializing;
     
+    // fields changed since the game was last written to the database, with their new values
+    @JsonIgnore
+    private final Map<String, Object> changedFields = new LinkedHashMap<String, Object>();
+    
     /****************
      * Class methods
      * -------------
      ***************/
     
     /**
-     * Looks-up all games that are finished or transient, i.e. used for 
-     * the game statistics page.
+     * Looks-up all games that are finished or transient.
+     * The game statistics page uses GameStatistics instead, which does not read all games.
      * @return
      */
     
@@ -81,37 +92,119 @@ public class Game {
     }
     
     /**
-     * Looks up an opponent for the user to play the game against.
+     * Looks up a page of the game history, newest first.
+     * 
+     * Pages are addressed by a cursor pointing at the last game of the previous page (see cursorOf),
+     * so each page is one indexed range query however far back it is.
+     * 
+     * @param after - cursor of the previous page, empty for the first page
+     * @param limit - maximum number of games
+     * @return
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static List<Game> findPage(String after, final int limit) {
+    	Find find;
+    	
+    	if(after == null || after.isEmpty()) {
+    		find = games().find();
+    		
+    	} else {
+    		int separator = after.indexOf('_');
+    		if(separator <= 0) {
+    			throw new IllegalArgumentException("Invalid cursor: " + after);
+    		}
+    		
+    		Date date;
+    		try {
+    			date = new Date(Long.parseLong(after.substring(0, separator)));
+    		} catch (NumberFormatException e) {
+    			throw new IllegalArgumentException("Invalid cursor: " + after, e);
+    		}
+    		String id = after.substring(separator + 1);
+    		if(!ObjectId.isValid(id)) {
+    			throw new IllegalArgumentException("Invalid cursor: " + after);
+    		}
+    		
+    		find = games().find("{$or: [{date: {$lt: #}}, {date: #, _id: {$lt: #}}]}", date, date, new ObjectId(id));
+    	}
+    	
+    	final Find sorted = find.sort("{date: -1, _id: -1}").limit(limit);
+    	
+    	return Metrics.mongo("games.findPage", new Metrics.Call<List<Game>>() {
+			@Override
+			public List<Game> call() {
+				List<Game> page = new ArrayList<Game>(limit);
+				
+				for(Game game : sorted.as(Game.class)) {
+					page.add(game);
+				}
+				
+				return page;
+			}
+		});
+    }
+    
+    /**
+     * Returns the cursor to look up the games after this one, see findPage
+     * @param game
+     * @return
+     */
+    public static String cursorOf(Game game) {
+    	return game.date.getTime() + "_" + game.id;
+    }
+    
+    /**
+     * Looks up all games, newest first, with Jongo's cursor: the games are read in batches
+     * while they are iterated, not all at once
+     * @return
+     */
+    public static Iterable<Game> findAllGamesNewestFirst() {
+    	return games().find().sort("{date: -1, _id: -1}").as(Game.class);
+    }
+    
+    /**
+     * Looks up an opponent for the user to play the game against: 
+     * a nearby friend or, if there is none, a nearby friend of a friend.
      * 
      * @param user
      * @return
      */
     
-    public static User findOpponent(User user){
-    	// we are looking up participating friends here, so you can start the application
-    	// out of the box; preferable for such a game would be friend of friends etc
-    	// 
-    	// this method is costly but primitive
+    public static User findOpponent(final User user){
+    	// friends are preferred, friends of friends are only asked for if no friend is available;
+    	// both are looked up in the social graph and checked against the nearby users index 
+    	// in memory, so that only the nearby candidates have to be read from the database
     	
     	User ret = null;
     	
-    	//Get all friends that 1) participate and are 2) nearby and 3) logged in less that 60 mins ago  	
-    	LinkedList<User> friends = new LinkedList<User>();
+    	SocialGraph.Filter nearby = new SocialGraph.Filter() {
+			@Override
+			public boolean accept(String facebookID) {
+				return Presence.getInstance().isOnline(facebookID) 
+						&& UserLocationIndex.getInstance().isWithin(facebookID, user.loc[0], user.loc[1], GameConfiguration.MaxDistanceOfUserForNearbyUsers);
+			}
+		};
     	
-    	for(String friendID: user.facebookFriendIDs) {
-    		User friend = User.findByFacebookID(friendID);
-    		if(friend != null && friend.participatesInGame) {
-    			
-    			if(Util.geoLocToDistInMeters(user.loc[0], user.loc[1], friend.loc[0], friend.loc[1]) <= GameConfiguration.MaxDistanceOfUserForNearbyUsers) {
-    		
-    				long currentTimeInSeconds = System.currentTimeMillis() / 1000;
-    				
-    				if(currentTimeInSeconds - friend.lastLogin <= GameConfiguration.MaxTimeForLoginTimeOutInSeconds){
-
-    					friends.add(friend);
-    				} 				
-    			}    			
-    		}
+    	List<String> friendIDs = new ArrayList<String>();
+    	List<String> friendOfFriendIDs = new ArrayList<String>();
+    	
+    	SocialGraph.getInstance().findWithinTwoHops(user.facebookID, nearby, friendIDs, friendOfFriendIDs, GameConfiguration.MaxNumberOfFriendsOfFriendsForOpponents);
+    	
+    	//Get the candidates that participate in one request (online users only, see Presence)
+    	// and then filter those that are nearby (according to the database)
+    	
+    	List<User> friends = new ArrayList<User>();
+    	
+    	if(!friendIDs.isEmpty()) {
+    		friends = filterNearby(user, 
+    				User.findParticipatingByFacebookIDs(friendIDs.toArray(new String[friendIDs.size()])), 
+    				GameConfiguration.MaxDistanceOfUserForNearbyUsers);
+    	}
+    	
+    	if(friends.isEmpty() && !friendOfFriendIDs.isEmpty()) {
+    		friends = filterNearby(user, 
+    				User.findParticipatingByFacebookIDs(friendOfFriendIDs.toArray(new String[friendOfFriendIDs.size()])), 
+    				GameConfiguration.MaxDistanceOfUserForNearbyUsers);
     	}
     	 	
     	// choose one of the friends randomly, unless only one friend exists
@@ -131,30 +224,122 @@ public class Game {
     	return ret;
     }
     
-    public static Game createAndStartNewGame(User user1, User user2) throws IOException {
+    // locations of the candidates of filterNearby, reused by the calls of a thread
+    private static class Locations {
+    	double[] longitudes = new double[0];
+    	double[] latitudes = new double[0];
+    	int[] selected = new int[0];
+    }
+    
+    private static final ThreadLocal<Locations> locations = new ThreadLocal<Locations>() {
+    	@Override
+    	protected Locations initialValue() {
+    		return new Locations();
+    	}
+    };
+    
+    /**
+     * Removes the candidates that are not within a distance of the user, 
+     * the filtering step of findOpponent (does not access the database).
+     * 
+     * The locations are checked in one batch (see Util.selectWithinDistance), using arrays that are 
+     * reused by the calls of a thread, and the list is filtered in place.
+     * 
+     * @param user
+     * @param candidates - changed: only the nearby candidates are kept, in their order
+     * @param maxDistance - in meters
+     * @return the candidates
+     */
+    public static List<User> filterNearby(User user, List<User> candidates, double maxDistance) {
+    	int count = candidates.size();
+    	Locations scratch = locations.get();
+    	
+    	if(scratch.selected.length < count) {
+    		int length = Math.max(count, 2 * scratch.selected.length);
+    		
+    		scratch.longitudes = new double[length];
+    		scratch.latitudes = new double[length];
+    		scratch.selected = new int[length];
+    	}
+    	
+    	for(int i = 0; i < count; i++) {
+    		Double[] loc = candidates.get(i).loc;
+    		scratch.longitudes[i] = loc[0];
+    		scratch.latitudes[i] = loc[1];
+    	}
+    	
+    	int selectedCount = Util.selectWithinDistance(user.loc[0], user.loc[1], scratch.longitudes, scratch.latitudes, count, maxDistance, scratch.selected);
+    	
+    	// the selected indices are ascending, so no candidate is overwritten before it is moved
+    	for(int i = 0; i < selectedCount; i++) {
+    		candidates.set(i, candidates.get(scratch.selected[i]));
+    	}
+    	
+    	for(int i = count - 1; i >= selectedCount; i--) {
+    		candidates.remove(i);
+    	}
+    	
+    	return candidates;
+    }
+    
+    public static Game createAndStartNewGame(User user1, User user2) {
     	//TODO: lookup and test whether a game between both users already exists
     	 	
     	Game newGame = new Game(user1, user2);
-    	games().insert(newGame);
     	
-    	ObjectNode requestMessage = PushMessages.createGameRequestMessage(newGame);
+    	// the ID is assigned here, since the game is written to the database later on (by an upsert, 
+    	// Jongo only assigns IDs on insert); like the IDs Jongo assigns, it is stored as an ObjectId
+    	newGame.id = new ObjectId().toString();
+    	newGame.changedAll();
     	
-    	user1.sendMessage(requestMessage);
-    	user2.sendMessage(requestMessage);
+    	// the store owns the game from now on, it is changed by transitions only
+    	Game game = newGame.copy();
+    	GameSessionStore.getInstance().add(newGame);
+    	GameStatistics.getInstance().created(game);
     	
-    	return newGame;
+    	String requestMessage = PushMessages.createGameRequestMessage(game);
+    	
+    	User.sendMessageToAll(requestMessage, user1, user2);
+    	
+    	return game;
     }
     
+    /**
+     * Looks up a game, running games are held in memory by the GameSessionStore
+     * @param id
+     * @return
+     */
     public static Game findByID(String id) { 	
-    	return games().findOne("{_id: #}", id).as(Game.class);
+    	return GameSessionStore.getInstance().find(id);
     }
     
+    // set between application start and stop, see openCollection()
+    private static volatile MongoCollection gameCollection;
+    
+    /**
+     * Returns the game collection of the database, the handle is looked up once on application start.
+     * Indexes are created on application start, see DatabaseIndexes.
+     * @return
+     */
     public static MongoCollection games() {
-        MongoCollection gameCollection =  PlayJongo.getCollection("games");
- 
-        return gameCollection;
+    	MongoCollection collection = gameCollection;
+        return collection != null ? collection : PlayJongo.getCollection("games");
     }    
     
+    /**
+     * Looks up the handle of the game collection, to be called on application start
+     */
+    public static void openCollection() {
+    	gameCollection = PlayJongo.getCollection("games");
+    }
+    
+    /**
+     * Drops the handle of the game collection, to be called on application stop
+     */
+    public static void closeCollection() {
+    	gameCollection = null;
+    }
+    
     
     /****************
      * Object methods
@@ -163,45 +348,75 @@ public class Game {
     
     /// these methods involve game logic
     
+    // Each transition checks the expected state and the user's role before it changes the game, 
+    // under the lock of the game's partition (see GameSessionStore), so that concurrent requests 
+    // of both users cannot overwrite each other's changes. The database is not asked for the 
+    // current state, it only receives the changes written behind.
     
     /**
      * To be called when a user accepted a game, 
      * establishes a game as soon as both user have accepted it.
      * Sends an established-message to both users.
      * 
+     * Like all state transitions of a game, this is applied to the game held by the GameSessionStore,
+     * which writes the changes to the database asynchronously.
+     * 
+     * @param gameID
      * @param facebookId
-     * @throws IOException
+     * @return the updated game, or null if the game does not exist or cannot be accepted (anymore)
      */
     
-    public void accept(String facebookId) throws IOException{
+    public static Game accept(String gameID, final String facebookId){
     	Logger.info("accepted game");
     	
-    	if(firstUserFbID.equals(facebookId)) {
-    		firstUserAccepted = true;
-    	}
-    	
-    	if(secondUserFbID.equals(facebookId)) {
-    		secondUserAccepted = true;
-    	}
+    	final boolean[] established = {false};
     	
-    	this.update();
+    	Game game = GameSessionStore.getInstance().update(gameID, new GameSessionStore.Transition() {
+			@Override
+			public boolean apply(Game game) {
+				if(!game.state.equals(StateInitializing)) {
+					return false;
+				}
+				
+				if(game.firstUserFbID.equals(facebookId)) {
+					game.firstUserAccepted = true;
+					game.changed("firstUserAccepted", game.firstUserAccepted);
+					
+				} else if(game.secondUserFbID.equals(facebookId)) {
+					game.secondUserAccepted = true;
+					game.changed("secondUserAccepted", game.secondUserAccepted);
+					
+				} else {
+					return false;
+				}
+				
+				if(game.isEstablished()) {
+					game.state = StateProgress;
+					game.changed("state", game.state);
+					
+					GameStatistics.getInstance().changedState(game, StateInitializing);
+					
+					established[0] = true;
+				}
+				
+				return true;
+			}
+		});
     	
-    	if(this.isEstablished() && this.state.equals(StateInitializing)){
-    		
-    		this.state = StateProgress;
-    		this.update();
+    	if(established[0]){
     		
     		// if the game is just established by the new accept message, send
     		// users the message that they can start playing
     		
-    		User user1 = User.findByFacebookID(this.firstUserFbID);
-        	User user2 = User.findByFacebookID(this.secondUserFbID);
+    		User user1 = User.findByFacebookID(game.firstUserFbID);
+        	User user2 = User.findByFacebookID(game.secondUserFbID);
     		
-        	ObjectNode abortMessage = PushMessages.createEstablishedGameMessage(this);
+        	String establishedMessage = PushMessages.createEstablishedGameMessage(game);
         	
-        	user1.sendMessage(abortMessage);
-        	user2.sendMessage(abortMessage);
+        	User.sendMessageToAll(establishedMessage, user1, user2);
     	}
+    	
+    	return game;
     }
     
     private static Random random = new Random();
@@ -218,21 +433,53 @@ public class Game {
     }
     
     /**
-     * Aborts the game.
+     * Whether the game is finished or aborted, i.e. its state does not change anymore
+     * @return
+     */
+    public boolean isOver(){
+    	return state.equals(StateFinished) || state.equals(StateAborted);
+    }
+    
+    /**
+     * Aborts the game, unless it is already finished or aborted.
      * Sends an abort-message to both users
      * 
+     * @param gameID
      * @param abortingUserFacebookID
-     * @throws IOException
+     * @return the aborted game, or null if the game does not exist or cannot be aborted (anymore)
      */
     
-    public void abort(String abortingUserFacebookID) throws IOException {
-    	this.aborted = true;
-    	this.state = StateAborted;
-    	this.winnerName ="aborted";
-    	this.update();
+    public static Game abort(String gameID, final String abortingUserFacebookID) {
+    	Game game = GameSessionStore.getInstance().update(gameID, new GameSessionStore.Transition() {
+			@Override
+			public boolean apply(Game game) {
+				if(game.isOver() || 
+						!(game.firstUserFbID.equals(abortingUserFacebookID) || game.secondUserFbID.equals(abortingUserFacebookID))) {
+					return false;
+				}
+				
+				String previousState = game.state;
+				
+				game.aborted = true;
+				game.state = StateAborted;
+				game.winnerName = "aborted";
+				
+				game.changed("aborted", game.aborted);
+				game.changed("state", game.state);
+				game.changed("winnerName", game.winnerName);
+				
+				GameStatistics.getInstance().changedState(game, previousState);
+				
+				return true;
+			}
+		});
+    	
+    	if(game == null) {
+    		return null;
+    	}
     	   	
-    	User user1 = User.findByFacebookID(this.firstUserFbID);
-    	User user2 = User.findByFacebookID(this.secondUserFbID);
+    	User user1 = User.findByFacebookID(game.firstUserFbID);
+    	User user2 = User.findByFacebookID(game.secondUserFbID);
     	
     	User abortingUser = null;
     	
@@ -246,10 +493,11 @@ public class Game {
     		abortingUser = user2;
     	}
     	
-    	ObjectNode abortMessage = PushMessages.createAbortGameMessage(this, abortingUser);
+    	String abortMessage = PushMessages.createAbortGameMessage(game, abortingUser);
+    	
+    	User.sendMessageToAll(abortMessage, user1, user2);
     	
-    	user1.sendMessage(abortMessage);
-    	user2.sendMessage(abortMessage);
+    	return game;
     }
     
     /**
@@ -257,76 +505,179 @@ public class Game {
      * If both users interacted within a narrow time-frame of 60 seconds, then
      * the game is "finished" and the winner is randomly selected.
      * 
+     * @param gameID
      * @param facebookID
-     * @throws IOException
+     * @return the updated game, or null if the game does not exist, is not in progress 
+     * 		   or the user already interacted
      */
     
-    public void socialInteraction(String facebookID) throws IOException{
-    	Long time = System.currentTimeMillis();
+    public static Game socialInteraction(String gameID, final String facebookID){
+    	final long time = System.currentTimeMillis();
     	
-    	if(this.state.equals(StateProgress)){
-    		
-    		Logger.info("offset " + java.lang.Math.abs(this.firstUserInteractionTimeStamp - this.secondUserInteractionTimeStamp)); 
-    		
-    		if(this.firstUserFbID.equals(facebookID) && this.firstUserInteractionTimeStamp < 0L) {
-    			this.firstUserInteractionTimeStamp = time;
-    			this.update();
-    		}
-    		
-    		if(this.secondUserFbID.equals(facebookID) && this.secondUserInteractionTimeStamp < 0L){
-    			this.secondUserInteractionTimeStamp = time;
-    			this.update();
-    		}
-    		
-    		// if both timestamps have been set, then the game is finished
-    		if(this.firstUserInteractionTimeStamp > 0 && this.secondUserInteractionTimeStamp > 0) {
-    			
-    			User user1 = User.findByFacebookID(this.firstUserFbID);
-            	User user2 = User.findByFacebookID(this.secondUserFbID);
-    			
-    			// see if social interaction took place in a similar time frame (one minute)
-            	// else we have a draw
-            	if(java.lang.Math.abs(this.firstUserInteractionTimeStamp - this.secondUserInteractionTimeStamp) < 60000) {
-            	
-	            	boolean user1Result = flipCoin(0.5); 
-	    			boolean user2Result = flipCoin(0.5);
-	    			
-	    			if(user1Result && !user2Result){
-	    				// user1 won
-	    				user1.addToScoreAndUpdate(5);
-	    				this.winnerFbID = user1.facebookID;
-	    				this.winnerName = user1.name;
-	    				
-	    		    	user1.sendMessage(PushMessages.createWonGameMessage(user1, user2));
-	    		    	user2.sendMessage(PushMessages.createLostGameMessage(user2, user1));
-	    				
-	    			} else if(!user1Result && user2Result){
-	    				// user2 won
-	    				user2.addToScoreAndUpdate(5);
-	    				this.winnerFbID = user2.facebookID;
-	    				this.winnerName = user2.name;
-	    				
-	    				user2.sendMessage(PushMessages.createWonGameMessage(user2, user1));
-	    		    	user1.sendMessage(PushMessages.createLostGameMessage(user1, user2));
-	    				
-	    			} else {
-	    				// draw
-	    				user1.sendMessage(PushMessages.createDrawGameMessage(user2));
-	    				user2.sendMessage(PushMessages.createDrawGameMessage(user1));
-	    				
-	    				this.winnerName = "draw";
-	    			} 			
-	    			
-            	} else {
-       				// draw
-    				user1.sendMessage(PushMessages.createDrawGameMessage(user2));
-    				user2.sendMessage(PushMessages.createDrawGameMessage(user1));
-    				
-    				this.winnerName = "draw";
-            	}
-            	this.state = StateFinished;
-            	
-    			this.update();
+    	// 1 if user1 won, 2 if user2 won, 0 for a draw, -1 if the game is not finished yet
+    	final int[] winner = {-1};
+    	
+    	Game game = GameSessionStore.getInstance().update(gameID, new GameSessionStore.Transition() {
+			@Override
+			public boolean apply(Game game) {
+				if(!game.state.equals(StateProgress)) {
+					return false;
+				}
+				
+				// only the first interaction of each user counts
+				if(game.firstUserFbID.equals(facebookID) && game.firstUserInteractionTimeStamp < 0L) {
+					game.firstUserInteractionTimeStamp = time;
+					game.changed("firstUserInteractionTimeStamp", game.firstUserInteractionTimeStamp);
+					
+				} else if(game.secondUserFbID.equals(facebookID) && game.secondUserInteractionTimeStamp < 0L) {
+					game.secondUserInteractionTimeStamp = time;
+					game.changed("secondUserInteractionTimeStamp", game.secondUserInteractionTimeStamp);
+					
+				} else {
+					return false;
+				}
+				
+				Logger.info("offset " + java.lang.Math.abs(game.firstUserInteractionTimeStamp - game.secondUserInteractionTimeStamp)); 
+				
+				// if both timestamps have been set, then the game is finished
+				if(game.firstUserInteractionTimeStamp > 0 && game.secondUserInteractionTimeStamp > 0) {
+					
+					winner[0] = 0;
+					
+					// see if social interaction took place in a similar time frame (one minute)
+		        	// else we have a draw
+		        	if(java.lang.Math.abs(game.firstUserInteractionTimeStamp - game.secondUserInteractionTimeStamp) < 60000) {
+		        	
+		            	boolean user1Result = flipCoin(0.5); 
+		    			boolean user2Result = flipCoin(0.5);
+		    			
+		    			if(user1Result && !user2Result){
+		    				winner[0] = 1;
+		    			} else if(!user1Result && user2Result){
+		    				winner[0] = 2;
+		    			}
+		        	}
+		        	
+		        	game.winnerFbID = winner[0] == 1 ? game.firstUserFbID : (winner[0] == 2 ? game.secondUserFbID : "");
+		        	game.winnerName = winner[0] == 1 ? game.firstUserName : (winner[0] == 2 ? game.secondUserName : "draw");
+		        	game.state = StateFinished;
+		        	
+		        	game.changed("winnerFbID", game.winnerFbID);
+		        	game.changed("winnerName", game.winnerName);
+		        	game.changed("state", game.state);
+		        	
+		        	GameStatistics.getInstance().changedState(game, StateProgress);
+				}
+				
+				return true;
+			}
+		});
+    	
+    	if(game == null || winner[0] < 0) {
+    		return game;
+    	}
+    	
+		User user1 = User.findByFacebookID(game.firstUserFbID);
+    	User user2 = User.findByFacebookID(game.secondUserFbID);
+    	
+		if(winner[0] == 1){
+			// user1 won
+			user1.addToScoreAndUpdate(5);
+			
+	    	user1.sendMessage(PushMessages.createWonGameMessage(user1, user2));
+	    	user2.sendMessage(PushMessages.createLostGameMessage(user2, user1));
+			
+		} else if(winner[0] == 2){
+			// user2 won
+			user2.addToScoreAndUpdate(5);
+			
+			user2.sendMessage(PushMessages.createWonGameMessage(user2, user1));
+	    	user1.sendMessage(PushMessages.createLostGameMessage(user1, user2));
+			
+		} else {
+			// draw
+			user1.sendMessage(PushMessages.createDrawGameMessage(user2));
+			user2.sendMessage(PushMessages.createDrawGameMessage(user1));
+		}
+		
+		return game;
+    }
+    
+    /**
+     * Write-behind support, only to be called by the thread allowed to change the game 
+     * (see GameSessionStore)
+     */
+    
+    private void changed(String field, Object value) {
+    	changedFields.put(field, value);
+    }
+    
+    // marks all fields of a new game as changed, so that it is written as a whole
+    private void changedAll() {
+    	changed("firstUserFbID", firstUserFbID);
+    	changed("secondUserFbID", secondUserFbID);
+    	changed("firstUserAccepted", firstUserAccepted);
+    	changed("secondUserAccepted", secondUserAccepted);
+    	changed("firstUserName", firstUserName);
+    	changed("secondUserName", secondUserName);
+    	changed("firstUserInteractionTimeStamp", firstUserInteractionTimeStamp);
+    	changed("secondUserInteractionTimeStamp", secondUserInteractionTimeStamp);
+    	changed("winnerFbID", winnerFbID);
+    	changed("winnerName", winnerName);
+    	changed("date", date);
+    	changed("aborted", aborted);
+    	changed("state", state);
+    }
+    
+    boolean hasChanges() {
+    	return !changedFields.isEmpty();
+    }
+    
+    /**
+     * Returns the fields changed since the last call, with their new values
+     * @return
+     */
+    Map<String, Object> takeChanges() {
+    	Map<String, Object> changes = new LinkedHashMap<String, Object>(changedFields);
+    	changedFields.clear();
+    	return changes;
+    }
+    
+    /**
+     * Returns a copy of the game without pending changes, to be read by threads that do not 
+     * hold the lock of the game's partition (see GameSessionStore)
+     * @return
+     */
+    Game copy() {
+    	Game copy = new Game();
+    	
+    	copy.id = id;
+    	copy.firstUserFbID = firstUserFbID;
+    	copy.secondUserFbID = secondUserFbID;
+    	copy.firstUserAccepted = firstUserAccepted;
+    	copy.secondUserAccepted = secondUserAccepted;
+    	copy.firstUserName = firstUserName;
+    	copy.secondUserName = secondUserName;
+    	copy.firstUserInteractionTimeStamp = firstUserInteractionTimeStamp;
+    	copy.secondUserInteractionTimeStamp = secondUserInteractionTimeStamp;
+    	copy.winnerFbID = winnerFbID;
+    	copy.winnerName = winnerName;
+    	copy.date = new Date(date.getTime());
+    	copy.aborted = aborted;
+    	copy.state = state;
+    	
+    	return copy;
+    }
+    
+    /**
+     * Marks fields as changed again after they could not be written,
+     * newer changes of the same fields are kept.
+     * @param changes
+     */
+    void restoreChanges(Map<String, Object> changes) {
+    	for(Map.Entry<String, Object> change : changes.entrySet()) {
+    		if(!changedFields.containsKey(change.getKey())) {
+    			changedFields.put(change.getKey(), change.getValue());
     		}
     	}
     }
@@ -346,37 +697,6 @@ public class Game {
 		this.secondUserName= user2.name;
 	}
 	
-	/**
-	 * creates a deep copy of this object
-	 * @return
-	 */
-	private Game copy() {
-		Game cp = new Game();
-		cp.firstUserAccepted = this.firstUserAccepted;
-		cp.firstUserFbID = this.firstUserFbID;
-		cp.firstUserName = this.firstUserName;
-		cp.firstUserInteractionTimeStamp = this.firstUserInteractionTimeStamp;
-		cp.secondUserAccepted=this.secondUserAccepted;
-		cp.secondUserFbID= this.secondUserFbID;
-		cp.secondUserName=this.secondUserName;
-		cp.secondUserInteractionTimeStamp = this.secondUserInteractionTimeStamp;
-		cp.aborted = this.aborted;
-		cp.winnerFbID = this.winnerFbID;
-		cp.winnerName = this.winnerName;
-		cp.date = this.date;
-		cp.state = this.state;
-		
-		return cp;
-	}
-	
-	/**
-	 * Updates the whole object in the database using a deep copy with unassigned database/jongo ID.
-	 */
-    private void update() {
-    	games().update("{_id: #}",this.id).with(this.copy());
-    }
-    
-    
     public String getState(){
     	return this.state;
     }
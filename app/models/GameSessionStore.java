@@ -0,0 +1,339 @@
+package models;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+
+import play.Logger;
+import util.GameConfiguration;
+import util.Metrics;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+
+/**
+ * Holds the games that are currently being played in memory, this is the authoritative
+ * state of a running game.
+ *
+ * Games only live for a few minutes (request, accept, interaction), so the state transitions
+ * are applied to the in-memory game without touching the database. Each game belongs to a
+ * partition (by game ID), only one thread at a time may change the games of a partition.
+ *
+ * Changes are written to the database asynchronously (write-behind) by a background thread,
+ * as partial updates containing only the changed fields, batched into one bulk request.
+ * Finished, aborted and idle games are removed from memory once their state has been written.
+ * A game that is not in memory, e.g. after a restart, is loaded from the database when it is
+ * accessed, without holding the lock of its partition.
+ *
+ * Note that this assumes that a single server instance handles all games, and that changes
+ * of the last write-behind interval are lost if the server crashes.
+ *
+ */
+public class GameSessionStore {
+
+	// created on application start, see open()
+	private static volatile GameSessionStore instance;
+
+	public static GameSessionStore getInstance() {
+		GameSessionStore current = instance;
+
+		if(current == null) {
+			throw new IllegalStateException("GameSessionStore is not open, the application has not been started");
+		}
+
+		return current;
+	}
+
+	/**
+	 * Creates the store and starts its write-behind, to be called on application start
+	 */
+	public static void open() {
+		instance = new GameSessionStore(GameConfiguration.GameSessionPartitions);
+	}
+
+	/**
+	 * Writes all pending changes and stops the write-behind, to be called on application stop
+	 */
+	public static void close() {
+		GameSessionStore current = instance;
+
+		if(current != null) {
+			current.shutdown();
+			instance = null;
+		}
+	}
+
+	/**
+	 * A change of the state of a game
+	 */
+	public interface Transition {
+		/**
+		 * Applies the change to the game, called by the single thread allowed to change it.
+		 * @param game
+		 * @return false if the change is not possible in the game's current state
+		 */
+		boolean apply(Game game);
+	}
+
+	private static class Session {
+		final Game game;
+		long lastAccessInMillis = System.currentTimeMillis();
+
+		Session(Game game) {
+			this.game = game;
+		}
+	}
+
+	private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+	// Facebook ID -> ID of the game in memory the player takes part in, while it is not over
+	private final ConcurrentMap<String, String> activeGames = new ConcurrentHashMap<String, String>();
+
+	// only the thread holding the lock of a partition may change its games
+	private final Object[] partitionLocks;
+
+	// writes the changes to the database
+	private final ScheduledExecutorService writer;
+
+	public GameSessionStore(int partitions) {
+		partitionLocks = new Object[partitions];
+		for(int i = 0; i < partitions; i++) {
+			partitionLocks[i] = new Object();
+		}
+
+		writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "game-write-behind");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		writer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeBehind();
+				} catch (RuntimeException e) {
+					Logger.error("Could not write games to the database", e);
+				}
+			}
+		}, GameConfiguration.GameSessionWriteBehindIntervalInMillis, GameConfiguration.GameSessionWriteBehindIntervalInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private Object partition(String gameID) {
+		return partitionLocks[(gameID.hashCode() & Integer.MAX_VALUE) % partitionLocks.length];
+	}
+
+	/**
+	 * Adds a new game, it will be written to the database with the next write-behind.
+	 * The game must not be changed afterwards except by transitions.
+	 * @param game - game with ID
+	 */
+	public void add(Game game) {
+		synchronized(partition(game.id)) {
+			sessions.put(game.id, new Session(game));
+			track(game);
+		}
+	}
+
+	/**
+	 * Applies a state transition to a game, loading the game from the database
+	 * if it is not in memory.
+	 *
+	 * @param gameID
+	 * @param transition
+	 * @return a copy of the game if the transition has been applied, null if the game does not exist
+	 * 		   or the transition is not possible
+	 */
+	public Game update(String gameID, Transition transition) {
+		while(true) {
+			Session session = sessions.get(gameID);
+
+			if(session == null) {
+				// read without the lock, a slow read must not hold up the other games of the partition
+				Game game = load(gameID);
+
+				if(game == null) {
+					return null;
+				}
+
+				session = putIfAbsent(game);
+			}
+
+			synchronized(partition(gameID)) {
+				// removed by the write-behind in between, everything has been written: load it again
+				if(sessions.get(gameID) != session) {
+					continue;
+				}
+
+				session.lastAccessInMillis = System.currentTimeMillis();
+
+				if(!transition.apply(session.game)) {
+					return null;
+				}
+
+				track(session.game);
+
+				return session.game.copy();
+			}
+		}
+	}
+
+	// keeps the session of a concurrent request that loaded the same game first
+	private Session putIfAbsent(Game game) {
+		synchronized(partition(game.id)) {
+			Session loaded = new Session(game);
+			Session session = sessions.putIfAbsent(game.id, loaded);
+
+			if(session != null) {
+				return session;
+			}
+
+			track(game);
+			GameStatistics.getInstance().loaded(game);
+			return loaded;
+		}
+	}
+
+	/**
+	 * @param facebookID
+	 * @return true if the player takes part in a game in memory that is not over
+	 */
+	public boolean hasActiveGame(String facebookID) {
+		return activeGames.containsKey(facebookID);
+	}
+
+	// called with the lock of the game's partition
+	private void track(Game game) {
+		if(game.isOver()) {
+			untrack(game);
+		} else {
+			activeGames.put(game.firstUserFbID, game.id);
+			activeGames.put(game.secondUserFbID, game.id);
+		}
+	}
+
+	// called with the lock of the game's partition
+	private void untrack(Game game) {
+		activeGames.remove(game.firstUserFbID, game.id);
+		activeGames.remove(game.secondUserFbID, game.id);
+	}
+
+	/**
+	 * Looks up a game, in memory first
+	 * @param gameID
+	 * @return a copy of the game, later transitions do not change it
+	 */
+	public Game find(String gameID) {
+		synchronized(partition(gameID)) {
+			Session session = sessions.get(gameID);
+
+			if(session != null) {
+				return session.game.copy();
+			}
+		}
+
+		return load(gameID);
+	}
+
+	private Game load(final String gameID) {
+		// IDs are ObjectIds, any other ID cannot belong to a game
+		if(!ObjectId.isValid(gameID)) {
+			return null;
+		}
+
+		return Metrics.mongo("games.findByID", new Metrics.Call<Game>() {
+			@Override
+			public Game call() {
+				return Game.games().findOne("{_id: #}", new ObjectId(gameID)).as(Game.class);
+			}
+		});
+	}
+
+	public int size() {
+		return sessions.size();
+	}
+
+	// writes all pending changes and stops the write-behind, see close()
+	private void shutdown() {
+		writer.shutdown();
+
+		try {
+			writer.awaitTermination(GameConfiguration.GameSessionWriteBehindIntervalInMillis * 10, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		writeBehind();
+	}
+
+	/**
+	 * Writes the changes of all games to the database with one bulk request and removes games
+	 * that are over or idle from memory.
+	 */
+	private synchronized void writeBehind() {
+		final BulkWriteOperation bulk = Game.games().getDBCollection().initializeUnorderedBulkOperation();
+
+		// changes taken from the games, restored if they cannot be written
+		Map<Session, Map<String, Object>> batch = new HashMap<Session, Map<String, Object>>();
+
+		for(Session session : sessions.values()) {
+			Map<String, Object> changes;
+			synchronized(partition(session.game.id)) {
+				changes = session.game.takeChanges();
+			}
+
+			if(!changes.isEmpty()) {
+				batch.put(session, changes);
+
+				bulk.find(new BasicDBObject("_id", new ObjectId(session.game.id)))
+					.upsert()
+					.updateOne(new BasicDBObject("$set", new BasicDBObject(changes)));
+			}
+		}
+
+		if(!batch.isEmpty()) {
+			try {
+				Metrics.mongo("games.writeBehind", new Metrics.Call<BulkWriteResult>() {
+					@Override
+					public BulkWriteResult call() {
+						return bulk.execute();
+					}
+				});
+
+			} catch (RuntimeException e) {
+				// keep the changes for the next attempt, writing them again does no harm
+				for(Map.Entry<Session, Map<String, Object>> entry : batch.entrySet()) {
+					Session session = entry.getKey();
+					synchronized(partition(session.game.id)) {
+						session.game.restoreChanges(entry.getValue());
+					}
+				}
+				Logger.error("Could not write " + batch.size() + " games to the database", e);
+			}
+		}
+
+		long idleSince = System.currentTimeMillis() - GameConfiguration.GameSessionIdleTimeoutInSeconds * 1000;
+
+		for(Session session : sessions.values()) {
+			synchronized(partition(session.game.id)) {
+				// everything has been written (no change in between) and nobody will change the game anymore
+				if(!session.game.hasChanges() && (session.game.isOver() || session.lastAccessInMillis < idleSince)) {
+					sessions.remove(session.game.id, session);
+					untrack(session.game);
+					GameStatistics.getInstance().unloaded(session.game);
+				}
+			}
+		}
+	}
+}
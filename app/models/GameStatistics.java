@@ -0,0 +1,226 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+import util.GameConfiguration;
+import util.Metrics;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Game statistics shown on the index page, kept up to date as games change their state.
+ *
+ * Instead of reading all games from the database for every page request, this holds
+ * the number of games per state, the most recent games (capped) and the number of
+ * games won per user. The aggregates are computed by the database once on application start,
+ * afterwards the Game model reports every new game and state change.
+ *
+ * Games that are requested or in progress are only counted while they are held in memory by the
+ * GameSessionStore, which reports when it loads or removes a game that is not over. A game that
+ * has been abandoned thus stops being counted once it is removed for being idle, instead of
+ * staying in its state forever.
+ *
+ * All methods are thread-safe.
+ *
+ */
+public class GameStatistics {
+
+	private static final GameStatistics instance = new GameStatistics(GameConfiguration.NumberOfRecentGamesInStatistics);
+
+	public static GameStatistics getInstance() {
+		return instance;
+	}
+
+	// result of the aggregations on application start
+	private static class Count {
+		@JsonProperty("_id")
+		String key;
+		long count;
+	}
+
+	// state -> number of games
+	private final ConcurrentMap<String, AtomicLong> gamesPerState = new ConcurrentHashMap<String, AtomicLong>();
+
+	// Facebook ID -> number of games won
+	private final ConcurrentMap<String, AtomicLong> winsPerUser = new ConcurrentHashMap<String, AtomicLong>();
+
+	// game ID -> copy of the game as of its last reported change, oldest first; guarded by itself.
+	// Copies, since the games of the GameSessionStore change while the page is rendered.
+	private final LinkedHashMap<String, Game> recentGames;
+
+	public GameStatistics(final int maxRecentGames) {
+		recentGames = new LinkedHashMap<String, Game>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Game> eldest) {
+				return size() > maxRecentGames;
+			}
+		};
+	}
+
+	/**
+	 * Computes the statistics from the games stored in the database,
+	 * to be called once on application start.
+	 */
+	public void loadFromDatabase() {
+		Metrics.mongo("games.countPerState", new Metrics.Call<Void>() {
+			@Override
+			public Void call() {
+				// running games are counted once they are loaded, see loaded()
+				for(Count count : Game.games().aggregate("{$match: {state: {$in: #}}}", new String[]{Game.StateFinished, Game.StateAborted})
+						.and("{$group: {_id: '$state', count: {$sum: 1}}}")
+						.as(Count.class)) {
+					counter(gamesPerState, count.key).addAndGet(count.count);
+				}
+				return null;
+			}
+		});
+
+		Metrics.mongo("games.countWinsPerUser", new Metrics.Call<Void>() {
+			@Override
+			public Void call() {
+				for(Count count : Game.games().aggregate("{$match: {state: #, winnerFbID: {$ne: ''}}}", Game.StateFinished)
+						.and("{$group: {_id: '$winnerFbID', count: {$sum: 1}}}")
+						.as(Count.class)) {
+					counter(winsPerUser, count.key).addAndGet(count.count);
+				}
+				return null;
+			}
+		});
+
+		List<Game> newestFirst = Metrics.mongo("games.findRecent", new Metrics.Call<List<Game>>() {
+			@Override
+			public List<Game> call() {
+				List<Game> newestFirst = new ArrayList<Game>();
+				for(Game game : Game.games().find().sort("{date: -1}").limit(GameConfiguration.NumberOfRecentGamesInStatistics).as(Game.class)) {
+					newestFirst.add(game);
+				}
+				return newestFirst;
+			}
+		});
+
+		synchronized(recentGames) {
+			for(int i = newestFirst.size() - 1; i >= 0; i--) {
+				Game game = newestFirst.get(i);
+				recentGames.put(game.id, game);
+			}
+		}
+
+		Logger.info("Game statistics loaded, games per state: " + gamesPerState);
+	}
+
+	/**
+	 * To be called when a new game has been created
+	 * @param game
+	 */
+	public void created(Game game) {
+		counter(gamesPerState, game.getState()).incrementAndGet();
+
+		Game snapshot = game.copy();
+
+		synchronized(recentGames) {
+			recentGames.put(game.id, snapshot);
+		}
+	}
+
+	/**
+	 * To be called when a game changed its state, by the thread allowed to change it
+	 * @param game - the game in its new state
+	 * @param previousState
+	 */
+	public void changedState(Game game, String previousState) {
+		counter(gamesPerState, previousState).decrementAndGet();
+		counter(gamesPerState, game.getState()).incrementAndGet();
+
+		if(game.getState().equals(Game.StateFinished) && !game.winnerFbID.isEmpty()) {
+			counter(winsPerUser, game.winnerFbID).incrementAndGet();
+		}
+
+		Game snapshot = game.copy();
+
+		synchronized(recentGames) {
+			if(recentGames.containsKey(game.id)) {
+				recentGames.put(game.id, snapshot);
+			}
+		}
+	}
+
+	/**
+	 * To be called when a game is loaded into memory, by the thread allowed to change it
+	 * @param game
+	 */
+	public void loaded(Game game) {
+		if(!game.isOver()) {
+			counter(gamesPerState, game.getState()).incrementAndGet();
+		}
+	}
+
+	/**
+	 * To be called when a game is removed from memory, by the thread allowed to change it
+	 * @param game
+	 */
+	public void unloaded(Game game) {
+		if(!game.isOver()) {
+			counter(gamesPerState, game.getState()).decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the number of games in a state
+	 * @param state - see Game.State...
+	 * @return
+	 */
+	public long getNumberOfGames(String state) {
+		AtomicLong count = gamesPerState.get(state);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * Returns the number of games won by a user
+	 * @param facebookID
+	 * @return
+	 */
+	public long getNumberOfWins(String facebookID) {
+		AtomicLong count = winsPerUser.get(facebookID);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * Returns the most recent games, newest first
+	 * @return
+	 */
+	public List<Game> getRecentGames() {
+		List<Game> games;
+
+		synchronized(recentGames) {
+			games = new ArrayList<Game>(recentGames.values());
+		}
+
+		Collections.reverse(games);
+		return games;
+	}
+
+	private static AtomicLong counter(ConcurrentMap<String, AtomicLong> counters, String key) {
+		AtomicLong counter = counters.get(key);
+
+		if(counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+
+			counter = counters.putIfAbsent(key, newCounter);
+			if(counter == null) {
+				counter = newCounter;
+			}
+		}
+
+		return counter;
+	}
+}
@@ -0,0 +1,195 @@
+package models;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import play.Logger;
+import util.Metrics;
+import util.OrderStatisticTree;
+
+/**
+ * In-memory ranking of all users by score, highest score first.
+ *
+ * The ranking is loaded from the database on application start and kept in sync by the User model
+ * on every score change. The top users and the rank of a user are looked up in O(log n)
+ * (plus the number of returned users), without querying the database.
+ *
+ * All methods are thread-safe: score changes take a write lock, rank and top lookups
+ * a read lock, so lookups do not wait for each other.
+ *
+ */
+public class Leaderboard {
+
+	private static final Leaderboard instance = new Leaderboard();
+
+	public static Leaderboard getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Immutable position of a user in the ranking
+	 */
+	public static class Entry {
+		public final String facebookID;
+		public final String name;
+		public final double score;
+
+		Entry(String facebookID, String name, double score) {
+			this.facebookID = facebookID;
+			this.name = name;
+			this.score = score;
+		}
+	}
+
+	// highest score first, users with the same score by Facebook ID
+	private static final Comparator<Entry> byScore = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			int cmp = Double.compare(e2.score, e1.score);
+			return cmp != 0 ? cmp : e1.facebookID.compareTo(e2.facebookID);
+		}
+	};
+
+	// guards the ranking: score changes are written one at a time, lookups run concurrently
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final OrderStatisticTree<Entry> ranking = new OrderStatisticTree<Entry>(byScore);
+
+	// the current entry of every ranked user, by Facebook ID; changed under the write lock only
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Fills the ranking with all users that have a score,
+	 * to be called once on application start.
+	 */
+	public void loadFromDatabase() {
+		int count = Metrics.mongo("users.loadLeaderboard", new Metrics.Call<Integer>() {
+			@Override
+			public Integer call() {
+				int count = 0;
+
+				for(User user : User.users().find("{score: {$exists: true}}").projection("{facebookID: 1, name: 1, score: 1}").as(User.class)) {
+					// users that logged in or scored meanwhile are already ranked with a newer score
+					addIfAbsent(user.facebookID, user.name, user.score);
+					count++;
+				}
+
+				return count;
+			}
+		});
+
+		Logger.info("Leaderboard loaded " + count + " users");
+	}
+
+	/**
+	 * Ranks a user that is not ranked yet, e.g. on login. The score of a ranked user is kept:
+	 * it follows every change (see add), whereas the given score may already be outdated
+	 * by a concurrent change. Only the name is taken over.
+	 *
+	 * @param facebookID
+	 * @param name
+	 * @param score
+	 */
+	public void addIfAbsent(String facebookID, String name, Double score) {
+		if(score == null) {
+			return;
+		}
+
+		lock.writeLock().lock();
+		try {
+			Entry previous = entries.get(facebookID);
+
+			if(previous == null) {
+				this.replace(null, new Entry(facebookID, name, score));
+
+			} else if(name != null && !name.equals(previous.name)) {
+				this.replace(previous, new Entry(facebookID, name, previous.score));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Applies a score change. Changes are applied as differences, so that concurrent changes
+	 * of the same user cannot overwrite each other here.
+	 *
+	 * @param facebookID
+	 * @param name
+	 * @param add - the change of the score
+	 * @param newScore - score after the change, used if the user is not ranked yet
+	 */
+	public void add(String facebookID, String name, double add, Double newScore) {
+		lock.writeLock().lock();
+		try {
+			Entry previous = entries.get(facebookID);
+
+			if(previous == null) {
+				if(newScore != null) {
+					this.replace(null, new Entry(facebookID, name, newScore));
+				}
+			} else {
+				this.replace(previous, new Entry(facebookID, name != null ? name : previous.name, previous.score + add));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the users with the highest score
+	 * @param k - maximum number of returned users
+	 * @return
+	 */
+	public List<Entry> top(int k) {
+		lock.readLock().lock();
+		try {
+			return ranking.head(k);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the rank of a user
+	 * @param facebookID
+	 * @return 1 for the user with the highest score, -1 if the user is not ranked
+	 */
+	public int rank(String facebookID) {
+		lock.readLock().lock();
+		try {
+			Entry entry = entries.get(facebookID);
+
+			return entry == null ? -1 : ranking.indexOf(entry) + 1;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the ranking entry of a user
+	 * @param facebookID
+	 * @return null if the user is not ranked
+	 */
+	public Entry get(String facebookID) {
+		return entries.get(facebookID);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	// called with the write lock held
+	private void replace(Entry previous, Entry entry) {
+		if(previous != null) {
+			ranking.remove(previous);
+		}
+
+		entries.put(entry.facebookID, entry);
+		ranking.add(entry);
+	}
+}
@@ -0,0 +1,245 @@
+package models;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+import util.GameConfiguration;
+import util.Metrics;
+import util.Util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+
+/**
+ * Ingestion stage for the location updates clients send continuously.
+ *
+ * Only the latest position of a user is kept until it is written. Updates that
+ * move a user by less than a configurable distance (dead-band) from the last accepted position
+ * are dropped, and accepted positions are written to the database periodically as one
+ * unordered bulk update. The nearby users index is updated immediately, so lookups
+ * see accepted positions right away.
+ *
+ * The last accepted positions are cached like the friend lists (see FriendListCache), which
+ * also tells which Facebook IDs belong to existing users without asking the database.
+ *
+ */
+public class LocationUpdates {
+
+	// created on application start, see open()
+	private static volatile LocationUpdates instance;
+
+	public static LocationUpdates getInstance() {
+		LocationUpdates current = instance;
+
+		if(current == null) {
+			throw new IllegalStateException("LocationUpdates is not open, the application has not been started");
+		}
+
+		return current;
+	}
+
+	/**
+	 * Creates the coalescing buffer and starts its writer, to be called on application start
+	 */
+	public static void open() {
+		instance = new LocationUpdates(GameConfiguration.LocationUpdateDeadBandInMeters);
+	}
+
+	/**
+	 * Writes the pending positions and stops the writer, to be called on application stop
+	 */
+	public static void close() {
+		LocationUpdates current = instance;
+
+		if(current != null) {
+			current.shutdown();
+			instance = null;
+		}
+	}
+
+	// Facebook ID -> last accepted position {longitude, latitude} of an existing user
+	private final Cache<String, double[]> lastPositions;
+
+	// Facebook ID -> position {longitude, latitude} not yet written to the database
+	private final ConcurrentMap<String, double[]> pendingPositions = new ConcurrentHashMap<String, double[]>();
+
+	private final double deadBandInMeters;
+
+	private final ScheduledExecutorService writer;
+
+	private final AtomicLong acceptedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong writtenCount = new AtomicLong();
+
+	public LocationUpdates(double deadBandInMeters) {
+		this.deadBandInMeters = deadBandInMeters;
+
+		lastPositions = CacheBuilder.newBuilder()
+				.expireAfterAccess(GameConfiguration.MaxTimeForLoginTimeOutInSeconds, TimeUnit.SECONDS)
+				.maximumSize(GameConfiguration.LocationUpdateCacheMaxSize)
+				.build();
+
+		writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "location-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		writer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (RuntimeException e) {
+					Logger.error("Could not write locations to the database", e);
+				}
+			}
+		}, GameConfiguration.LocationUpdateFlushIntervalInMillis, GameConfiguration.LocationUpdateFlushIntervalInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Takes the new position of a user, whose session has to be checked by the caller
+	 * (see Presence.touch)
+	 *
+	 * @param facebookID
+	 * @param longitude
+	 * @param latitude
+	 * @return false if the user does not exist
+	 */
+	public boolean submit(String facebookID, double longitude, double latitude) {
+		double[] last = lastPositions.getIfPresent(facebookID);
+
+		if(last == null) {
+			if(User.findKnownFacebookIDs(new String[]{facebookID}).isEmpty()) {
+				return false;
+			}
+
+		} else if(Util.geoLocToDistInMeters(last[0], last[1], longitude, latitude) < deadBandInMeters) {
+			droppedCount.incrementAndGet();
+			return true;
+		}
+
+		double[] position = new double[]{longitude, latitude};
+
+		lastPositions.put(facebookID, position);
+		pendingPositions.put(facebookID, position);
+		acceptedCount.incrementAndGet();
+
+		UserLocationIndex.getInstance().move(facebookID, longitude, latitude);
+
+		return true;
+	}
+
+	/**
+	 * To be called when the position of a user has been written to the database by
+	 * other means, e.g. on login; a pending older position is discarded.
+	 *
+	 * @param facebookID
+	 * @param loc - {longitude, latitude}
+	 */
+	public void written(String facebookID, Double[] loc) {
+		pendingPositions.remove(facebookID);
+
+		if(loc != null && loc.length >= 2) {
+			lastPositions.put(facebookID, new double[]{loc[0], loc[1]});
+		}
+	}
+
+	// writes the pending positions to the database and stops the periodic writes, see close()
+	private void shutdown() {
+		writer.shutdown();
+
+		try {
+			writer.awaitTermination(GameConfiguration.LocationUpdateFlushIntervalInMillis * 2, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		flush();
+	}
+
+	private synchronized void flush() {
+		if(pendingPositions.isEmpty()) {
+			return;
+		}
+
+		// Jongo has no bulk API, so the driver's collection is used directly
+		final BulkWriteOperation bulk = User.users().getDBCollection().initializeUnorderedBulkOperation();
+
+		Map<String, double[]> batch = new HashMap<String, double[]>();
+
+		for(Map.Entry<String, double[]> entry : pendingPositions.entrySet()) {
+			// a newer position submitted in between stays pending
+			if(pendingPositions.remove(entry.getKey(), entry.getValue())) {
+				batch.put(entry.getKey(), entry.getValue());
+
+				bulk.find(new BasicDBObject("facebookID", entry.getKey()))
+					.updateOne(new BasicDBObject("$set", new BasicDBObject("loc", Arrays.asList(entry.getValue()[0], entry.getValue()[1]))));
+			}
+		}
+
+		if(batch.isEmpty()) {
+			return;
+		}
+
+		try {
+			Metrics.mongo("users.bulkUpdateLocations", new Metrics.Call<BulkWriteResult>() {
+				@Override
+				public BulkWriteResult call() {
+					return bulk.execute();
+				}
+			});
+			writtenCount.addAndGet(batch.size());
+
+		} catch (RuntimeException e) {
+			// retried with the next flush, unless a newer position is pending by then
+			for(Map.Entry<String, double[]> entry : batch.entrySet()) {
+				pendingPositions.putIfAbsent(entry.getKey(), entry.getValue());
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Number of updates that changed the position
+	 * @return
+	 */
+	public long getAcceptedCount() {
+		return acceptedCount.get();
+	}
+
+	/**
+	 * Number of updates dropped since the user has not moved far enough
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Number of positions written to the database
+	 * @return
+	 */
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	public int getPendingCount() {
+		return pendingPositions.size();
+	}
+}
@@ -0,0 +1,321 @@
+package models;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import play.Logger;
+import util.GameConfiguration;
+import util.GeoGrid;
+import util.Util;
+
+/**
+ * Open matchmaking: pairs a user requesting a game with any player waiting nearby,
+ * not only with friends (see Game.findOpponent and GameConfiguration.MatchmakingMode).
+ *
+ * Waiting players are held in a queue per cell of a grid whose cells are about as large
+ * as the maximum distance of opponents. A request looks at the head of the queue of its own
+ * cell first and then at the neighbouring cells; if nobody compatible is waiting, the
+ * requesting user is queued and becomes the opponent of a later request.
+ *
+ * Players that waited too long or left are removed by the requests that come across them
+ * and, for cells without requests, by a periodic sweep of all queues.
+ *
+ * All methods are thread-safe and lock-free; a waiting player is claimed with a
+ * compare-and-set, so she/he is never paired twice.
+ *
+ */
+public class Matchmaker {
+
+	// values of GameConfiguration.MatchmakingMode
+	public static final String ModeFriends = "friends";
+	public static final String ModeOpen = "open";
+
+	// created on application start, see open()
+	private static volatile Matchmaker instance;
+
+	public static Matchmaker getInstance() {
+		Matchmaker current = instance;
+
+		if(current == null) {
+			throw new IllegalStateException("Matchmaker is not open, the application has not been started");
+		}
+
+		return current;
+	}
+
+	/**
+	 * Creates the queues and starts their sweeper, to be called on application start
+	 */
+	public static void open() {
+		instance = new Matchmaker(GameConfiguration.MaxDistanceOfUserForNearbyUsers,
+				GameConfiguration.MatchmakingMaxWaitInSeconds * 1000);
+	}
+
+	/**
+	 * Stops the sweeper and drops the queues, to be called on application stop
+	 */
+	public static void close() {
+		Matchmaker current = instance;
+
+		if(current != null) {
+			current.shutdown();
+			instance = null;
+		}
+	}
+
+	/**
+	 * A player waiting for an opponent
+	 */
+	private static class Waiting {
+		final String facebookID;
+		final double longitude;
+		final double latitude;
+		final long cell;
+		final long since;
+
+		// set once the player has been paired or left the queue
+		final AtomicBoolean claimed = new AtomicBoolean(false);
+
+		Waiting(String facebookID, double longitude, double latitude, long cell, long since) {
+			this.facebookID = facebookID;
+			this.longitude = longitude;
+			this.latitude = latitude;
+			this.cell = cell;
+			this.since = since;
+		}
+	}
+
+	private final GeoGrid grid;
+	private final double maxDistance;
+	private final long maxWaitInMillis;
+
+	// cell key -> waiting players, longest waiting first
+	private final ConcurrentMap<Long, Queue<Waiting>> cells = new ConcurrentHashMap<Long, Queue<Waiting>>();
+
+	// the current queue entry of every waiting player, by Facebook ID
+	private final ConcurrentMap<String, Waiting> waiting = new ConcurrentHashMap<String, Waiting>();
+
+	private final ScheduledExecutorService sweeper;
+
+	/**
+	 * @param maxDistance - maximum distance of opponents (meters)
+	 * @param maxWaitInMillis - players are removed from the queue after waiting this long
+	 */
+	public Matchmaker(double maxDistance, long maxWaitInMillis) {
+		this.grid = new GeoGrid(maxDistance / GeoGrid.MetersPerDegree);
+		this.maxDistance = maxDistance;
+		this.maxWaitInMillis = maxWaitInMillis;
+
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "matchmaking-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sweep(System.currentTimeMillis());
+				} catch (RuntimeException e) {
+					Logger.error("Could not sweep the matchmaking queues", e);
+				}
+			}
+		}, GameConfiguration.MatchmakingSweepIntervalInSeconds, GameConfiguration.MatchmakingSweepIntervalInSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Pairs the user with a compatible waiting player, or queues the user if there is none.
+	 *
+	 * @param user - the user requesting a game
+	 * @return the opponent, null if the user has been queued
+	 */
+	public User match(User user) {
+		long now = System.currentTimeMillis();
+		double longitude = user.loc[0];
+		double latitude = user.loc[1];
+
+		// a user requesting again leaves the queue, so she/he cannot be paired twice
+		leave(user.facebookID);
+
+		Waiting candidate;
+		while((candidate = claimNearby(user.facebookID, longitude, latitude, now)) != null) {
+			// the player may have started a game otherwise while waiting, e.g. with a friend
+			if(GameSessionStore.getInstance().hasActiveGame(candidate.facebookID)) {
+				continue;
+			}
+
+			User opponent = User.findByFacebookID(candidate.facebookID);
+
+			if(opponent != null) {
+				Logger.info("Matched " + user.facebookID + " with waiting player " + opponent.facebookID);
+				return opponent;
+			}
+		}
+
+		Waiting entry = new Waiting(user.facebookID, longitude, latitude, grid.keyOf(longitude, latitude), now);
+
+		Waiting previous = waiting.put(user.facebookID, entry);
+		if(previous != null) {
+			previous.claimed.set(true);
+		}
+
+		queue(entry.cell).add(entry);
+
+		return null;
+	}
+
+	/**
+	 * Removes a user from the queue, e.g. once she/he started a game otherwise
+	 * @param facebookID
+	 */
+	public void leave(String facebookID) {
+		Waiting entry = waiting.remove(facebookID);
+
+		if(entry != null && entry.claimed.compareAndSet(false, true)) {
+			Queue<Waiting> queue = cells.get(entry.cell);
+
+			if(queue != null) {
+				queue.remove(entry);
+			}
+		}
+	}
+
+	/**
+	 * Number of players waiting for an opponent
+	 * @return
+	 */
+	public int size() {
+		return waiting.size();
+	}
+
+	private void shutdown() {
+		sweeper.shutdownNow();
+	}
+
+	/**
+	 * Removes the players that waited too long and the entries of players that
+	 * have been paired or left from all queues
+	 * @param now
+	 */
+	private void sweep(long now) {
+		for(Queue<Waiting> queue : cells.values()) {
+			Iterator<Waiting> entries = queue.iterator();
+
+			while(entries.hasNext()) {
+				Waiting entry = entries.next();
+
+				if(entry.claimed.get()) {
+					entries.remove();
+
+				} else if(now - entry.since > maxWaitInMillis) {
+					if(entry.claimed.compareAndSet(false, true)) {
+						waiting.remove(entry.facebookID, entry);
+					}
+					entries.remove();
+				}
+			}
+		}
+	}
+
+	// claims a compatible player waiting in the cell of the location or in a neighbouring one
+	private Waiting claimNearby(String facebookID, double longitude, double latitude, long now) {
+		int centerColumn = grid.column(longitude);
+		int centerRow = grid.row(latitude);
+
+		// the own cell first, its players are the most likely to be close enough
+		Waiting opponent = claim(grid.key(centerColumn, centerRow), facebookID, longitude, latitude, now);
+
+		int columnSpan = grid.columnSpan(latitude, maxDistance);
+		int rowSpan = grid.rowSpan(maxDistance);
+
+		int minRow = Math.max(0, centerRow - rowSpan);
+		int maxRow = Math.min(grid.getRows() - 1, centerRow + rowSpan);
+
+		// do not visit a column twice when the span wraps around the whole globe
+		int columnCount = Math.min(grid.getColumns(), 2 * columnSpan + 1);
+
+		for(int c = 0; c < columnCount && opponent == null; c++) {
+			int column = centerColumn - columnSpan + c;
+
+			for(int row = minRow; row <= maxRow && opponent == null; row++) {
+				if(column != centerColumn || row != centerRow) {
+					opponent = claim(grid.key(column, row), facebookID, longitude, latitude, now);
+				}
+			}
+		}
+
+		return opponent;
+	}
+
+	// claims the longest waiting compatible player of a cell, null if there is none
+	private Waiting claim(long cell, String facebookID, double longitude, double latitude, long now) {
+		Queue<Waiting> queue = cells.get(cell);
+
+		if(queue == null) {
+			return null;
+		}
+
+		int inspected = 0;
+		Iterator<Waiting> candidates = queue.iterator();
+
+		while(candidates.hasNext() && inspected < GameConfiguration.MatchmakingMaxCandidatesPerCell) {
+			Waiting candidate = candidates.next();
+
+			if(candidate.claimed.get()) {
+				// paired or left, not removed yet
+				candidates.remove();
+				continue;
+			}
+
+			if(now - candidate.since > maxWaitInMillis) {
+				if(candidate.claimed.compareAndSet(false, true)) {
+					waiting.remove(candidate.facebookID, candidate);
+				}
+				candidates.remove();
+				continue;
+			}
+
+			inspected++;
+
+			if(candidate.facebookID.equals(facebookID)
+					|| Util.distanceInMeters(longitude, latitude, candidate.longitude, candidate.latitude) > maxDistance) {
+				continue;
+			}
+
+			if(candidate.claimed.compareAndSet(false, true)) {
+				waiting.remove(candidate.facebookID, candidate);
+				candidates.remove();
+				return candidate;
+			}
+		}
+
+		return null;
+	}
+
+	private Queue<Waiting> queue(long cell) {
+		Queue<Waiting> queue = cells.get(cell);
+
+		if(queue == null) {
+			Queue<Waiting> newQueue = new ConcurrentLinkedQueue<Waiting>();
+
+			queue = cells.putIfAbsent(cell, newQueue);
+			if(queue == null) {
+				queue = newQueue;
+			}
+		}
+
+		return queue;
+	}
+}
@@ -0,0 +1,241 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+import util.GameConfiguration;
+import util.Metrics;
+import util.TimingWheel;
+
+/**
+ * Tracks which users are online: a session starts on login and is extended by every
+ * activity (location updates, game requests). Sessions without activity for
+ * MaxTimeForLoginTimeOutInSeconds expire.
+ *
+ * Expired users no longer participate in the game: they are removed from the nearby users
+ * index and the matchmaking queue, and participatesInGame is set to false in the database,
+ * for all users expired at the same time with one update. They participate again with the
+ * next login.
+ *
+ * Sessions are held in a timing wheel (see TimingWheel), so expiring them costs O(1) per
+ * session and extending a session is a single compare-and-set.
+ *
+ */
+public class Presence {
+
+	// created on application start, see open()
+	private static volatile Presence instance;
+
+	public static Presence getInstance() {
+		Presence current = instance;
+
+		if(current == null) {
+			throw new IllegalStateException("Presence is not open, the application has not been started");
+		}
+
+		return current;
+	}
+
+	/**
+	 * Creates the session timeouts and starts their expiry, to be called on application start (before loadFromDatabase)
+	 */
+	public static void open() {
+		instance = new Presence(GameConfiguration.MaxTimeForLoginTimeOutInSeconds * 1000);
+	}
+
+	/**
+	 * Stops the expiry and drops the sessions, to be called on application stop
+	 */
+	public static void close() {
+		Presence current = instance;
+
+		if(current != null) {
+			current.shutdown();
+			instance = null;
+		}
+	}
+
+	private final long timeoutInMillis;
+
+	private final TimingWheel<String> sessionTimeouts;
+
+	// Facebook ID -> timeout of the session of an online user
+	private final ConcurrentMap<String, TimingWheel.Timeout<String>> sessions = new ConcurrentHashMap<String, TimingWheel.Timeout<String>>();
+
+	private final ScheduledExecutorService expirer;
+
+	private final AtomicLong expiredCount = new AtomicLong();
+
+	public Presence(long timeoutInMillis) {
+		this.timeoutInMillis = timeoutInMillis;
+
+		// 1s ticks, three levels reach about three days
+		sessionTimeouts = new TimingWheel<String>(GameConfiguration.PresenceTickInMillis, 3, System.currentTimeMillis());
+
+		expirer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "presence-expirer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		expirer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					expire();
+				} catch (RuntimeException e) {
+					Logger.error("Could not expire sessions", e);
+				}
+			}
+		}, GameConfiguration.PresenceTickInMillis, GameConfiguration.PresenceTickInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts the sessions of the participating users that logged in recently and ends the
+	 * participation of all others, to be called once on application start
+	 * (before the nearby users index is loaded).
+	 */
+	public void loadFromDatabase() {
+		final long now = System.currentTimeMillis();
+		final List<String> stale = new ArrayList<String>();
+
+		Metrics.mongo("users.loadPresence", new Metrics.Call<Void>() {
+			@Override
+			public Void call() {
+				for(User user : User.users().find("{participatesInGame: true}").projection("{facebookID: 1, lastLogin: 1}").as(User.class)) {
+					long deadline = (user.lastLogin != null ? user.lastLogin * 1000 : 0) + timeoutInMillis;
+
+					if(deadline > now) {
+						sessions.put(user.facebookID, sessionTimeouts.schedule(user.facebookID, deadline));
+					} else {
+						stale.add(user.facebookID);
+					}
+				}
+
+				return null;
+			}
+		});
+
+		endParticipation(stale);
+
+		Logger.info("Presence loaded " + sessions.size() + " online users, " + stale.size() + " expired");
+	}
+
+	/**
+	 * Starts or extends the session of a user that just logged in
+	 * @param facebookID
+	 */
+	public void login(String facebookID) {
+		long deadline = System.currentTimeMillis() + timeoutInMillis;
+
+		TimingWheel.Timeout<String> session = sessions.get(facebookID);
+
+		if(session == null || !session.extend(deadline)) {
+			sessions.put(facebookID, sessionTimeouts.schedule(facebookID, deadline));
+		}
+	}
+
+	/**
+	 * Extends the session of an active user
+	 * @param facebookID
+	 * @return false if the user is not online (anymore), she/he has to log in again
+	 */
+	public boolean touch(String facebookID) {
+		TimingWheel.Timeout<String> session = sessions.get(facebookID);
+
+		return session != null && session.extend(System.currentTimeMillis() + timeoutInMillis);
+	}
+
+	public boolean isOnline(String facebookID) {
+		TimingWheel.Timeout<String> session = sessions.get(facebookID);
+
+		return session != null && !session.isDone();
+	}
+
+	/**
+	 * Number of online users
+	 * @return
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Number of sessions that expired since the application started
+	 * @return
+	 */
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	private void shutdown() {
+		expirer.shutdownNow();
+	}
+
+	private void expire() {
+		List<String> expired = new ArrayList<String>();
+
+		sessionTimeouts.advance(System.currentTimeMillis(), expired);
+
+		if(expired.isEmpty()) {
+			return;
+		}
+
+		List<String> offline = new ArrayList<String>(expired.size());
+
+		for(String facebookID : expired) {
+			TimingWheel.Timeout<String> session = sessions.get(facebookID);
+
+			// a login may have started a new session in the meantime
+			if(session != null && session.isDone() && sessions.remove(facebookID, session)) {
+				UserLocationIndex.getInstance().remove(facebookID);
+				Matchmaker.getInstance().leave(facebookID);
+
+				// a login right after the session has been removed may have added the user
+				// to the index before the removal above, add her/him again
+				if(isOnline(facebookID)) {
+					User user = User.findByFacebookID(facebookID);
+
+					if(user != null) {
+						UserLocationIndex.getInstance().update(user);
+					}
+				} else {
+					offline.add(facebookID);
+				}
+			}
+		}
+
+		expiredCount.addAndGet(offline.size());
+
+		endParticipation(offline);
+	}
+
+	// sets participatesInGame to false, with one update per batch of users
+	private void endParticipation(List<String> facebookIDs) {
+		// users that logged in again after their session expired are not changed
+		final long minLastLogin = (System.currentTimeMillis() - timeoutInMillis) / 1000 + 1;
+
+		for(int from = 0; from < facebookIDs.size(); from += GameConfiguration.PresenceWriteBatchSize) {
+			final List<String> batch = facebookIDs.subList(from, Math.min(facebookIDs.size(), from + GameConfiguration.PresenceWriteBatchSize));
+
+			Metrics.mongo("users.endParticipation", new Metrics.Call<Void>() {
+				@Override
+				public Void call() {
+					User.users().update("{facebookID: {$in: #}, lastLogin: {$not: {$gte: #}}}", batch, minLastLogin).multi().with("{$set: {participatesInGame: false}}");
+					return null;
+				}
+			});
+		}
+	}
+}
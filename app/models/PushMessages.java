@@ -1,10 +1,7 @@
 package models;
 
 
-import play.libs.Json;
-
-import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import util.JsonTemplate;
 /**
 * This class is used for convenience to generate the specific messages used to 
 * communicate to the client application.
@@ -14,91 +11,83 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 * subtype - for indicating the nature of the event
 * and additional payload
 * 
-* The messages are always encoded into a JSON that is sent to the client application
+* The messages are always encoded into a JSON that is sent to the client application.
+* Each message type is a precompiled template, a message is encoded once and the
+* string is shared by all of its recipients.
 *
 *
 */
 
 public class PushMessages {
-	
-	public static ObjectNode createGameRequestMessage(Game game){
-		ObjectNode json = Json.newObject(); 
-		
-		json.put("type", "game");
-		json.put("subtype", "request");
-		json.put("gameID", game.id);
-		json.put("user1ID", game.firstUserFbID);
-		json.put("user2ID", game.secondUserFbID);
-		json.put("user1Name", game.firstUserName);
-		json.put("user2Name", game.secondUserName);
-		
-		return json;
-	} 
-	
-	public static ObjectNode createAbortGameMessage(Game game, User abortingUser) {
-		ObjectNode json = Json.newObject(); 
-		
-		json.put("type", "game");
-		json.put("subtype", "aborted");
-		json.put("gameID", game.id);
-		json.put("aborterID", abortingUser.facebookID);
-		json.put("aborterName", abortingUser.name);
-		
-		return json;
+
+	private static final String loginMessage = new JsonTemplate(new String[] {"type", "server", "subtype", "login"}).start().end();
+
+	private static final JsonTemplate gameRequest = gameTemplate("request", "gameID", "user1ID", "user2ID", "user1Name", "user2Name");
+	private static final JsonTemplate abortedGame = gameTemplate("aborted", "gameID", "aborterID", "aborterName");
+	private static final JsonTemplate establishedGame = gameTemplate("established", "gameID");
+	private static final JsonTemplate wonGame = gameTemplate("won", "score", "opponent");
+	private static final JsonTemplate lostGame = gameTemplate("lost", "score", "opponent");
+	private static final JsonTemplate drawGame = gameTemplate("draw", "opponent");
+	private static final JsonTemplate poke = gameTemplate("poke", "senderName", "senderID");
+
+	private static JsonTemplate gameTemplate(String subtype, String... slots) {
+		return new JsonTemplate(new String[] {"type", "game", "subtype", subtype}, slots);
 	}
-	
-	public static ObjectNode createEstablishedGameMessage(Game game) {
-		ObjectNode json = Json.newObject(); 
-		
-		json.put("type", "game");
-		json.put("subtype", "established");
-		json.put("gameID", game.id);
-		
-		return json;
+
+	public static String createLoginMessage() {
+		return loginMessage;
 	}
-	
-	public static ObjectNode createWonGameMessage(User winner, User loser) {
-		ObjectNode json = Json.newObject(); 
-		
-		json.put("type", "game");
-		json.put("subtype", "won");
-		json.put("score", winner.score);
-		json.put("opponent", loser.name);
-		
-		return json;
+
+	public static String createGameRequestMessage(Game game){
+		return gameRequest.start()
+				.string(game.id)
+				.string(game.firstUserFbID)
+				.string(game.secondUserFbID)
+				.string(game.firstUserName)
+				.string(game.secondUserName)
+				.end();
 	}
-	
-
-	public static ObjectNode createLostGameMessage(User loser, User winner) {
-		ObjectNode json = Json.newObject(); 
-		
-		json.put("type", "game");
-		json.put("subtype", "lost");
-		json.put("score", loser.score);
-		json.put("opponent", winner.name);
-		
-		return json;
+
+	public static String createAbortGameMessage(Game game, User abortingUser) {
+		return abortedGame.start()
+				.string(game.id)
+				.string(abortingUser.facebookID)
+				.string(abortingUser.name)
+				.end();
 	}
-	
-	public static ObjectNode createDrawGameMessage(User opponent) {
-		ObjectNode json = Json.newObject(); 
-		
-		json.put("type", "game");
-		json.put("subtype", "draw");
-		json.put("opponent", opponent.name);
-		
-		return json;
+
+	public static String createEstablishedGameMessage(Game game) {
+		return establishedGame.start()
+				.string(game.id)
+				.end();
+	}
+
+	public static String createWonGameMessage(User winner, User loser) {
+		return wonGame.start()
+				.number(winner.score)
+				.string(loser.name)
+				.end();
+	}
+
+
+	public static String createLostGameMessage(User loser, User winner) {
+		return lostGame.start()
+				.number(loser.score)
+				.string(winner.name)
+				.end();
+	}
+
+	public static String createDrawGameMessage(User opponent) {
+		return drawGame.start()
+				.string(opponent.name)
+				.end();
 	}
 
-	public static ObjectNode createPokeMessage(User sender) {
-		ObjectNode json = Json.newObject(); 
-		
-		json.put("type", "game");
-		json.put("subtype", "poke");
-		json.put("senderName", sender.name);
-		json.put("senderID", sender.facebookID);
-		
-		return json;
+	public static String createPokeMessage(User sender) {
+		return poke.start()
+				.string(sender.name)
+				.string(sender.facebookID)
+				.end();
 	}
 
 }
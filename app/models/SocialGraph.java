@@ -0,0 +1,305 @@
+package models;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import play.Logger;
+import util.IdInterner;
+import util.Metrics;
+
+/**
+ * In-memory friendship graph of all users, built from their Facebook friend lists.
+ *
+ * Users are interned to int IDs (see IdInterner) and the friends of a user are held in a sorted
+ * int array, so the graph of a large number of users fits into memory and the friends of friends
+ * of a user are found without asking the database (see Game.findOpponent).
+ *
+ * The graph is read from the database on application start and updated whenever a login delivers
+ * a new friend list. Friendship is symmetric: updating the friends of a user adds her/him to the
+ * friends of the new friends and removes her/him from the friends of the old ones.
+ *
+ * Updates are serialized, lookups are lock-free; a friend array is never changed once
+ * it is visible, an update replaces it.
+ *
+ */
+public class SocialGraph {
+
+	private static final SocialGraph instance = new SocialGraph();
+
+	public static SocialGraph getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Decides which users are returned by a lookup
+	 */
+	public interface Filter {
+		boolean accept(String facebookID);
+	}
+
+	private static final int[] NoFriends = new int[0];
+
+	// marks of the users visited by a lookup of the thread, see begin()
+	private static class Visited {
+		int[] marks = new int[0];
+		int epoch = 0;
+	}
+
+	private static final ThreadLocal<Visited> visited = new ThreadLocal<Visited>() {
+		@Override
+		protected Visited initialValue() {
+			return new Visited();
+		}
+	};
+
+	private final IdInterner ids = new IdInterner();
+
+	// int ID -> sorted int IDs of the friends; replaced by a larger copy when full
+	private volatile AtomicReferenceArray<int[]> friends = new AtomicReferenceArray<int[]>(1024);
+
+	/**
+	 * Builds the graph from the friend lists stored in the database,
+	 * to be called once on application start (which fails if this fails).
+	 */
+	public void loadFromDatabase() {
+		int count = Metrics.mongo("users.loadSocialGraph", new Metrics.Call<Integer>() {
+			@Override
+			public Integer call() {
+				int count = 0;
+
+				for(User user : User.users().find("{'facebookFriendIDs.0': {$exists: true}}").projection("{facebookID: 1, facebookFriendIDs: 1}").as(User.class)) {
+					update(user.facebookID, user.facebookFriendIDs);
+					count++;
+				}
+
+				return count;
+			}
+		});
+
+		Logger.info("Social graph loaded " + count + " friend lists, " + ids.size() + " users");
+	}
+
+	/**
+	 * Replaces the friends of a user, e.g. after Facebook delivered them on login
+	 *
+	 * @param facebookID
+	 * @param facebookFriendIDs
+	 */
+	public synchronized void update(String facebookID, String[] facebookFriendIDs) {
+		int user = ids.intern(facebookID);
+
+		int[] newFriends = new int[facebookFriendIDs.length];
+		int count = 0;
+
+		for(String facebookFriendID : facebookFriendIDs) {
+			int friend = ids.intern(facebookFriendID);
+
+			if(friend != user) {
+				newFriends[count++] = friend;
+			}
+		}
+
+		newFriends = distinct(newFriends, count);
+
+		ensureCapacity(ids.size());
+
+		int[] oldFriends = friendsOf(user);
+		friends.set(user, newFriends);
+
+		// the difference of both sorted arrays: friends added and removed by this update
+		int i = 0;
+		int j = 0;
+
+		while(i < oldFriends.length || j < newFriends.length) {
+			if(j >= newFriends.length || (i < oldFriends.length && oldFriends[i] < newFriends[j])) {
+				friends.set(oldFriends[i], without(friendsOf(oldFriends[i]), user));
+				i++;
+
+			} else if(i >= oldFriends.length || newFriends[j] < oldFriends[i]) {
+				friends.set(newFriends[j], with(friendsOf(newFriends[j]), user));
+				j++;
+
+			} else {
+				i++;
+				j++;
+			}
+		}
+	}
+
+	/**
+	 * Looks up the friends and the friends of friends of a user.
+	 *
+	 * @param facebookID
+	 * @param filter - only the users it accepts are returned, e.g. nearby ones
+	 * @param friendsOut - receives the Facebook IDs of the accepted friends
+	 * @param friendsOfFriendsOut - receives the Facebook IDs of the accepted friends of friends that are not friends
+	 * @param limit - maximum number of returned friends of friends
+	 */
+	public void findWithinTwoHops(String facebookID, Filter filter, List<String> friendsOut, List<String> friendsOfFriendsOut, int limit) {
+		int user = ids.lookup(facebookID);
+
+		if(user < 0) {
+			return;
+		}
+
+		AtomicReferenceArray<int[]> current = friends;
+		Visited marks = begin(ids.size());
+
+		int[] userFriends = friendsOf(current, user);
+
+		marks.marks[user] = marks.epoch;
+		for(int friend : userFriends) {
+			// users added after begin() are not marked, see below
+			if(friend < marks.marks.length) {
+				marks.marks[friend] = marks.epoch;
+			}
+
+			String friendID = ids.name(friend);
+			if(filter.accept(friendID)) {
+				friendsOut.add(friendID);
+			}
+		}
+
+		for(int friend : userFriends) {
+			for(int friendOfFriend : friendsOf(current, friend)) {
+				if(friendsOfFriendsOut.size() >= limit) {
+					return;
+				}
+
+				// users added after begin() are skipped
+				if(friendOfFriend >= marks.marks.length || marks.marks[friendOfFriend] == marks.epoch) {
+					continue;
+				}
+
+				marks.marks[friendOfFriend] = marks.epoch;
+
+				String friendOfFriendID = ids.name(friendOfFriend);
+				if(filter.accept(friendOfFriendID)) {
+					friendsOfFriendsOut.add(friendOfFriendID);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks whether two users are friends, a binary search in the friends of one of them
+	 *
+	 * @param facebookID
+	 * @param otherFacebookID
+	 * @return
+	 */
+	public boolean areFriends(String facebookID, String otherFacebookID) {
+		int user = ids.lookup(facebookID);
+		int other = ids.lookup(otherFacebookID);
+
+		return user >= 0 && other >= 0 && Arrays.binarySearch(friendsOf(user), other) >= 0;
+	}
+
+	/**
+	 * @param facebookID
+	 * @return the number of friends of a user, 0 if unknown
+	 */
+	public int numberOfFriends(String facebookID) {
+		int user = ids.lookup(facebookID);
+
+		return user < 0 ? 0 : friendsOf(user).length;
+	}
+
+	/**
+	 * Number of users in the graph (including friends that never logged in)
+	 * @return
+	 */
+	public int size() {
+		return ids.size();
+	}
+
+	private int[] friendsOf(int user) {
+		return friendsOf(friends, user);
+	}
+
+	private static int[] friendsOf(AtomicReferenceArray<int[]> friends, int user) {
+		int[] userFriends = user < friends.length() ? friends.get(user) : null;
+		return userFriends == null ? NoFriends : userFriends;
+	}
+
+	// called by update() only
+	private void ensureCapacity(int size) {
+		AtomicReferenceArray<int[]> current = friends;
+
+		if(size > current.length()) {
+			AtomicReferenceArray<int[]> larger = new AtomicReferenceArray<int[]>(Math.max(size, 2 * current.length()));
+
+			for(int i = 0; i < current.length(); i++) {
+				larger.set(i, current.get(i));
+			}
+
+			friends = larger;
+		}
+	}
+
+	// starts a lookup: clears the marks of the thread by moving on to the next epoch
+	private static Visited begin(int size) {
+		Visited marks = visited.get();
+
+		if(marks.marks.length < size) {
+			marks.marks = new int[Math.max(size, 2 * marks.marks.length)];
+			marks.epoch = 0;
+		}
+
+		marks.epoch++;
+
+		if(marks.epoch == 0) {
+			// wrapped around, old marks could be taken for current ones
+			Arrays.fill(marks.marks, 0);
+			marks.epoch = 1;
+		}
+
+		return marks;
+	}
+
+	// sorted copy of the first count values without duplicates
+	private static int[] distinct(int[] values, int count) {
+		Arrays.sort(values, 0, count);
+
+		int n = 0;
+		for(int i = 0; i < count; i++) {
+			if(n == 0 || values[n - 1] != values[i]) {
+				values[n++] = values[i];
+			}
+		}
+
+		return n == values.length ? values : Arrays.copyOf(values, n);
+	}
+
+	private static int[] with(int[] sorted, int value) {
+		int index = Arrays.binarySearch(sorted, value);
+
+		if(index >= 0) {
+			return sorted;
+		}
+
+		index = -index - 1;
+
+		int[] result = new int[sorted.length + 1];
+		System.arraycopy(sorted, 0, result, 0, index);
+		result[index] = value;
+		System.arraycopy(sorted, index, result, index + 1, sorted.length - index);
+
+		return result;
+	}
+
+	private static int[] without(int[] sorted, int value) {
+		int index = Arrays.binarySearch(sorted, value);
+
+		if(index < 0) {
+			return sorted;
+		}
+
+		int[] result = new int[sorted.length - 1];
+		System.arraycopy(sorted, 0, result, 0, index);
+		System.arraycopy(sorted, index + 1, result, index, sorted.length - index - 1);
+
+		return result;
+	}
+}
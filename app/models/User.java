@@ -1,21 +1,28 @@
 package models;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.bson.types.ObjectId;
 import org.jongo.MongoCollection;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.google.android.gcm.server.Result;
-import com.google.common.collect.Lists;
+import com.mongodb.MongoException;
+import com.restfb.exception.FacebookException;
 
 import controllers.FacebookAppClient;
 import controllers.PushNotifications;
+import play.Logger;
 import uk.co.panaxiom.playjongo.PlayJongo;
+import util.Metrics;
 
 
 /**
@@ -45,7 +52,8 @@ public class User {
     // a list of facebook IDs of the user's friends,
     // to simplifiy (circumvent inconsistencies when a user logs in and has a different list of friends), 
     // we will have to look up the users according to Facebook-ID
-    // from the database
+    // from the database;
+    // only stored, users are read without it: friendships are held in memory by the SocialGraph (as int IDs)
     public String[] facebookFriendIDs = new String[]{};
     
     public String name;
@@ -61,59 +69,158 @@ public class User {
     // Game score that the user achieved
     public Double score = 0.0;
     
+    // fields changed since the user was loaded or last written to the database, with their new values
+    @JsonIgnore
+    private final Map<String, Object> changedFields = new LinkedHashMap<String, Object>();
+    
     /****************
      * Class methods
      * -------------
      ***************/
 	
+    // bound to the database connection of the running application, see openCollection()
+    private static volatile MongoCollection userCollection;
+	
    /**
-    * Looks up the user collection from the database
+    * Returns the user collection of the database, the handle is looked up once on application start.
+    * Indexes are created on application start, see DatabaseIndexes.
     * @return
     */
     public static MongoCollection users() {
-        MongoCollection userCollection =  PlayJongo.getCollection("users");
-        
-        // make sure we use 2d indices on a sphere to use geospatial queries
-        userCollection.ensureIndex("{loc: '2dsphere'}");
-        return userCollection;
+    	MongoCollection collection = userCollection;
+    	
+    	// not started by Global (e.g. a test application), look it up every time
+        return collection != null ? collection : PlayJongo.getCollection("users");
     }    
     
+    /**
+     * Looks up the handle of the user collection, to be called on application start
+     */
+    public static void openCollection() {
+    	userCollection = PlayJongo.getCollection("users");
+    }
+    
+    /**
+     * Drops the handle of the user collection, to be called on application stop: the next
+     * application (e.g. in tests) has a connection of its own
+     */
+    public static void closeCollection() {
+    	userCollection = null;
+    }
+    
     /**
      * User lookup by user/character name
      * @param name
      * @return
      */
-    public static User findByName(String name) {
-        return users().findOne("{name: #}", name).as(User.class);
+    public static User findByName(final String name) {
+    	return Metrics.mongo("users.findByName", new Metrics.Call<User>() {
+			@Override
+			public User call() {
+				return users().findOne("{name: #}", name).as(User.class);
+			}
+		});
     }
     
     /**
-     * User lookup by Facebook ID 
+     * User lookup by Facebook ID, without the friend list (see SocialGraph)
      * @param fbID
      * @return
      */
-    public static User findByFacebookID(String fbID) {
-    	return users().findOne("{facebookID: #}", fbID).as(User.class);
+    public static User findByFacebookID(final String fbID) {
+    	return Metrics.mongo("users.findByFacebookID", new Metrics.Call<User>() {
+			@Override
+			public User call() {
+				return users().findOne("{facebookID: #}", fbID).projection("{facebookFriendIDs: 0}").as(User.class);
+			}
+		});
     }
     
     /**
-     * Adds a new user to the database
-     * @param name - User/character name
-     * @param fbID - Facebook ID
+     * Looks up all users of a list of Facebook IDs that participate in the game, 
+     * using a single database request. 
+     * 
+     * Only the fields needed for choosing an opponent and messaging her/him are loaded, 
+     * e.g. the (possibly large) friend lists are not.
+     * 
+     * @param fbIDs - Facebook IDs of the users to look up
      * @return
      */
-    private static User insertNewUserWithSimpleProfileData(String name, String fbID) {
-    	User newUser = new User(name, fbID);
-    	newUser.insert();    	
-    	
-    	return newUser;
+    public static List<User> findParticipatingByFacebookIDs(final String[] fbIDs) {
+    	return Metrics.mongo("users.findParticipatingByFacebookIDs", new Metrics.Call<List<User>>() {
+			@Override
+			public List<User> call() {
+				List<User> participating = new ArrayList<User>();
+				
+				for(User user : users().find("{facebookID: {$in: #}, participatesInGame: true}", (Object) fbIDs)
+						.projection("{facebookID: 1, name: 1, loc: 1, lastLogin: 1, participatesInGame: 1, googleCloudDeviceId: 1}")
+						.as(User.class)) {
+					participating.add(user);
+				}
+				
+				return participating;
+			}
+		});
+    }
+    
+    /**
+     * Returns which of the Facebook IDs belong to users stored in the database, 
+     * using a single database request
+     * @param fbIDs
+     * @return
+     */
+    public static Set<String> findKnownFacebookIDs(final String[] fbIDs) {
+    	return Metrics.mongo("users.findKnownFacebookIDs", new Metrics.Call<Set<String>>() {
+			@Override
+			public Set<String> call() {
+				Set<String> known = new HashSet<String>();
+				
+				for(User user : users().find("{facebookID: {$in: #}}", (Object) fbIDs).projection("{facebookID: 1}").as(User.class)) {
+					known.add(user.facebookID);
+				}
+				
+				return known;
+			}
+		});
+    }
+    
+    /**
+     * Adds new users to the database with a single (batch) insert
+     * @param newUsers - users with name and Facebook ID set
+     */
+    private static void insertNewUsersWithSimpleProfileData(final List<User> newUsers) {
+    	if(!newUsers.isEmpty()) {
+    		Metrics.mongo("users.insertNewUsers", new Metrics.Call<Void>() {
+				@Override
+				public Void call() {
+					try {
+						users().insert(newUsers.toArray());
+						
+					} catch (MongoException.DuplicateKey e) {
+						// some of them have been added concurrently (e.g. by a common friend logging in),
+						// the batch insert stops there, so add the rest one by one
+						for(User newUser : newUsers) {
+							try {
+								users().insert(newUser);
+							} catch (MongoException.DuplicateKey duplicate) {
+								// already there
+							}
+						}
+					}
+					
+					return null;
+				}
+			});
+    	}
     }  
     
     
     /**
      * This class method finds users that are nearby a location, 
-     * it only returns users that are also participating in the game, you can uncomment the 
-     * additional mongoDB parameters if you want
+     * it only returns users that are also participating in the game.
+     * 
+     * The lookup is answered by the in-memory UserLocationIndex, which is kept up to date
+     * on every location update and login, the database is not queried here.
      * 
      * @param loc - geolocations as 2D double vector: {longitude,lattitude}
      * @param maxDistance - maximum distance in meters where users should be looked up
@@ -122,15 +229,7 @@ public class User {
      */
     
     public static Iterable<User> findUsersNearby(Double[] loc, Double maxDistance, int limit) {
-    	// geoNear indicates a lookup based on spherical coordinates
- 
-    	// this DB request also serves as an example for a slightly more complex mongoDB request making use
-    	// of the "native" mongoDB API
-    	List<User> results = Lists.newArrayList(users().find("{loc: {$geoNear : {$geometry : {type: 'Point', " +
-                "coordinates: # }, $maxDistance: # }}, participatesInGame: true}", loc, maxDistance).limit(limit) // 
-                .as(User.class));
-    	
-    	return results;
+    	return UserLocationIndex.getInstance().findNearby(loc, maxDistance, limit);
     }    
 
 
@@ -147,48 +246,65 @@ public class User {
 		this.facebookID = facebookID;
 	}
                   
-    public void insert() {
-        users().save(this);
-    }
-
     public void remove() {
-        users().remove(this.id);
+    	Metrics.mongo("users.remove", new Metrics.Call<Void>() {
+			@Override
+			public Void call() {
+				users().remove(User.this.id);
+				return null;
+			}
+		});
     }
     
     /**
-     * Performs a deep copy of the user's data
-     * @return
+     * Remembers that a field has been changed, it will be written with the next update
+     * @param field - name of the field in the database
+     * @param value - new value
      */
-    private User copy() {
-    	User copy = new User();
-    	
-    	copy.name = this.name;
-    	copy.googleCloudDeviceId = this.googleCloudDeviceId;
-    	copy.facebookID = this.facebookID;
-    	copy.facebookFriendIDs = this.facebookFriendIDs.clone();
-    	copy.loc = this.loc;
-    	copy.participatesInGame = this.participatesInGame;
-    	copy.lastLogin = this.lastLogin;
-    	copy.score = this.score;
-    	
-    	return copy;    
+    private void changed(String field, Object value) {
+    	changedFields.put(field, value);
     }
     
     /**
-     * Updates all fields in the DB for the object by making a copy and swapping the original object in the database for it
+     * Writes the fields changed since the last update to the database using a single $set,
+     * does nothing if no field has been changed.
      */
     private void update() {
-    	// copy the user to be sure that database IDs will be taken care of
-    	users().update("{facebookID: #}",this.facebookID).with(this.copy());
+    	if(!changedFields.isEmpty()) {
+    		Metrics.mongo("users.update", new Metrics.Call<Void>() {
+				@Override
+				public Void call() {
+					users().update("{facebookID: #}", facebookID).with("{$set: #}", changedFields);
+					return null;
+				}
+			});
+    		changedFields.clear();
+    	}
     }
     
     /**
-     * Alters the score of a user
+     * Alters the score of a user, the change is applied atomically by the database 
+     * so that concurrent games cannot overwrite each other's points.
+     * The score of this object is set to the new score afterwards.
      * @param add
      */
-    public void addToScoreAndUpdate(double add){
-    	double newScore = this.score + add;
-    	users().update("{facebookID: #}", this.facebookID).with("{$set: {score: #}}", (Object) new Double(newScore));
+    public void addToScoreAndUpdate(final double add){
+    	User updated = Metrics.mongo("users.addToScore", new Metrics.Call<User>() {
+			@Override
+			public User call() {
+				return users().findAndModify("{facebookID: #}", facebookID)
+						.with("{$inc: {score: #}}", (Object) new Double(add))
+						.projection("{score: 1}")
+						.returnNew()
+						.as(User.class);
+			}
+		});
+    	
+    	if(updated != null) {
+    		this.score = updated.score;
+    		
+    		Leaderboard.getInstance().add(this.facebookID, this.name, add, this.score);
+    	}
     }
     
     /**
@@ -199,38 +315,33 @@ public class User {
      */
 
     public void updateLocation(Double longitude, Double latitude){
-    	users().update("{facebookID: #}", this.facebookID).with("{$set: {loc: #}}", (Object) new Double[]{longitude, latitude});
+    	this.loc = new Double[]{longitude, latitude};
+    	this.changed("loc", this.loc);
+    	this.update();
+    	
+    	UserLocationIndex.getInstance().update(this);
     }
     
     /**
-     * A primitve function that checks whether a user is another user's friend on Facebook
+     * Checks whether a user is another user's friend on Facebook, 
+     * looked up in the social graph (binary search in the friends' int IDs)
      * @param other
      * @return
      */
     public boolean isFriendOf(User other) {
-    	boolean ret = false;
-    	
-    	for(String facebookFriendID : this.facebookFriendIDs) {
-    		if(facebookFriendID.equals(other.facebookID)) {
-    			ret = true;
-    			
-    			break;
-    		}
-    	}
-    	
-    	return ret;
+    	return SocialGraph.getInstance().areFriends(this.facebookID, other.facebookID);
     }    
     
     /**
-     * Send a message to the User's device using Google Cloud Messaging
+     * Send a message to the User's device using Google Cloud Messaging,
+     * the message is queued and delivered asynchronously
      * 
-     * @param json - Json of the message contents to be sent
-     * @return
-     * @throws IOException
+     * @param message - Json of the message contents to be sent, see PushMessages
+     * @return false if the message could not be queued
      */
     
-    public Result sendMessage(ObjectNode json) throws IOException {
-    	return this.sendMessageCached(json, 0);
+    public boolean sendMessage(String message) {
+    	return this.sendMessageCached(message, 0);
     }
     
     /**
@@ -238,20 +349,42 @@ public class User {
      * this time the message is cached in the GCM system and delivered
      * as soon as the device is online
      * 
-     * @param json - Json of the message contents to be sent
+     * @param message - Json of the message contents to be sent, see PushMessages
      * @param ttl - Time to live of the message in GCM
-     * @return
-     * @throws IOException
+     * @return false if the message could not be queued
+     */
+    
+    public boolean sendMessageCached(String message, int ttl) {
+    	return PushNotifications.getInstance().sendMessage(this.googleCloudDeviceId, message, ttl);
+    }
+    
+    /**
+     * Send the same message to the devices of several users using Google Cloud Messaging,
+     * the message is sent as a single multicast request
+     * 
+     * @param message - Json of the message contents to be sent, see PushMessages
+     * @param recipients - users that receive the message
+     * @return false if the message could not be queued
      */
     
-    public Result sendMessageCached(ObjectNode json, int ttl) throws IOException {
-    	return PushNotifications.getInstance().sendMessage(this.googleCloudDeviceId, json.toString(), ttl);
+    public static boolean sendMessageToAll(String message, User... recipients) {
+    	List<String> deviceIds = new ArrayList<String>(recipients.length);
+    	
+    	for(User recipient : recipients) {
+    		deviceIds.add(recipient.googleCloudDeviceId);
+    	}
+    	
+    	return PushNotifications.getInstance().sendMessage(deviceIds, message, 0);
     }
         
     /**
      * Updates or inserts a new User
-     * This method has the overhead of requesting most of the user's data and updating them in the database, it could be performed in a more compact/less bandwidth demanding way,
-     * but for the sake of being able to expand this method with additional processing/information all data is being requested from facebook 
+     * The user's profile and friends are requested from Facebook, the friends that are not known yet 
+     * are added to the database as well. If the friends of the user have been requested recently 
+     * (see FriendListCache), only the profile is requested and the friend entries are left as they are.
+     * 
+     * The number of database requests does not depend on the number of friends: one lookup of the known
+     * friends, one batch insert of the unknown ones and one upsert of the user.
      * 
      * @param facebookAuthToken
      * @param googleCDSToken
@@ -261,62 +394,173 @@ public class User {
      */
     
     public static User updateUserProfileFromLoginCredentials(String facebookAuthToken, String googleCDSToken, Double longitude, Double latitude) {
-    	User user = null;
+    	FacebookAppClient.LoginProfile loginProfile = requestLoginProfile(facebookAuthToken);
     	
+    	return updateUserProfileFromLoginProfile(loginProfile, facebookAuthToken, googleCDSToken, longitude, latitude);
+    }
+    
+    /**
+     * First part of the login: requests the user's profile from Facebook, and her/his friends unless
+     * they are still fresh. Does not access the database.
+     * 
+     * @param facebookAuthToken
+     * @return null if Facebook did not deliver the profile
+     */
+    public static FacebookAppClient.LoginProfile requestLoginProfile(String facebookAuthToken) {
+    	com.restfb.types.User facebookUserProfile;
     	
-    	com.restfb.types.User facebookUserProfile = FacebookAppClient.getUser(facebookAuthToken);    	
+    	try {
+    		facebookUserProfile = FacebookAppClient.getUser(facebookAuthToken);
+    	} catch (FacebookException e) {
+    		Logger.warn("Could not request user profile: " + e.getMessage());
+    		return null;
+    	}
     	
-    	if(facebookUserProfile != null) {
-    		user = User.findByFacebookID(facebookUserProfile.getId());
-    		
-    		// if the user does not exist, create one
-    		if(user == null) {
-    			user =  insertNewUserWithSimpleProfileData(facebookUserProfile.getName(), facebookUserProfile.getId());    			
+    	if(facebookUserProfile == null) {
+    		return null;
+    	}
+    	
+    	// friend lists hardly change, do not request them again if we did so recently
+    	List<com.restfb.types.User> friends = null;
+    	
+    	if(!FriendListCache.getInstance().isFresh(facebookUserProfile.getId())) {
+    		try {
+    			friends = FacebookAppClient.getFriendsOfUser(facebookAuthToken);
+    		} catch (FacebookException e) {
+    			// the friend entries are left as they are
+    			Logger.warn("Could not request friends of " + facebookUserProfile.getName() + ": " + e.getMessage());
     		}
+    	}
+    	
+    	return new FacebookAppClient.LoginProfile(facebookUserProfile, friends);
+    }
+    
+    /**
+     * Second part of the login: updates or inserts the user and her/his friends in the database. 
+     * Does not access Facebook.
+     * 
+     * @param loginProfile - see requestLoginProfile, may be null
+     * @param facebookAuthToken
+     * @param googleCDSToken
+     * @param longitude
+     * @param latitude
+     * @return null if there is no profile
+     */
+    public static User updateUserProfileFromLoginProfile(FacebookAppClient.LoginProfile loginProfile, String facebookAuthToken, 
+    		String googleCDSToken, Double longitude, Double latitude) {
+    	User user = null;
+    	
+    	if(loginProfile != null) {
+    		com.restfb.types.User facebookUserProfile = loginProfile.user;
     		
-			// as the user logged in, we can set her/his profile as active    			
-			user.participatesInGame = true;
-    		
-    		user.googleCloudDeviceId = googleCDSToken;
-    		user.loc = new Double[]{longitude,latitude};
-    		user.lastLogin = System.currentTimeMillis()/1000;
+    		// as the user logged in, we can set her/his profile as active
+    		Map<String, Object> profile = new HashMap<String, Object>();
+    		profile.put("name", facebookUserProfile.getName());
+    		profile.put("participatesInGame", true);
+    		profile.put("googleCloudDeviceId", googleCDSToken);
+    		profile.put("loc", new Double[]{longitude,latitude});
+    		profile.put("lastLogin", System.currentTimeMillis()/1000);
     		    		    		
-    		// Update the user profile's friends entries
-        	List<com.restfb.types.User> usersFacebookFriends = FacebookAppClient.getFriendsOfUser(facebookAuthToken);        	
-        	String[] fbFriendIDs = new String[usersFacebookFriends.size()];
-        	
-        	int idx = 0;
-        	for(com.restfb.types.User facebookFriend : usersFacebookFriends) {
-        		
-        		// check if the friend is already in the database, else add her/him
-        		if(User.findByFacebookID(facebookFriend.getId()) == null){
-        			User.insertNewUserWithSimpleProfileData(facebookFriend.getName(), facebookFriend.getId());
-        		}   
-        		fbFriendIDs[idx] = facebookFriend.getId();
-        		
-        		idx++;
-        	}
+    		// Update the user profile's friends entries, keep the old ones if they are still fresh 
+    		// or Facebook did not deliver them
+    		List<com.restfb.types.User> usersFacebookFriends = loginProfile.friends;
+    		String[] fbFriendIDs = null;
+    		
+    		if(usersFacebookFriends != null) {
+	        	fbFriendIDs = new String[usersFacebookFriends.size()];
+	        	
+	        	int idx = 0;
+	        	for(com.restfb.types.User facebookFriend : usersFacebookFriends) {
+	        		fbFriendIDs[idx] = facebookFriend.getId();
+	        		
+	        		idx++;
+	        	}
+	        	
+	        	// add the friends that are not in the database yet
+	        	Set<String> knownFriendIDs = findKnownFacebookIDs(fbFriendIDs);
+	        	List<User> newFriends = new ArrayList<User>();
+	        	
+	        	for(com.restfb.types.User facebookFriend : usersFacebookFriends) {
+	        		if(knownFriendIDs.add(facebookFriend.getId())) {
+	        			newFriends.add(new User(facebookFriend.getName(), facebookFriend.getId()));
+	        		}
+	        	}
+	        	
+	        	insertNewUsersWithSimpleProfileData(newFriends);
+	        	
+	        	profile.put("facebookFriendIDs", fbFriendIDs);
+    		}
+    		
+    		// if the user does not exist, create one
+    		Map<String, Object> defaults = new HashMap<String, Object>();
+    		defaults.put("score", 0.0);
         	
-        	user.facebookFriendIDs = fbFriendIDs;
+    		user = upsertProfile(facebookUserProfile.getId(), profile, defaults);
+    		
+    		// only once the database holds the new friends, so the graph cannot diverge from it
+    		if(fbFriendIDs != null) {
+	        	FriendListCache.getInstance().put(facebookUserProfile.getId());
+	        	SocialGraph.getInstance().update(facebookUserProfile.getId(), fbFriendIDs);
+    		}
         	
-        	user.update();
+        	Presence.getInstance().login(user.facebookID);
+        	UserLocationIndex.getInstance().update(user);
+        	LocationUpdates.getInstance().written(user.facebookID, user.loc);
+        	// the score read here may be older than a concurrent score change, see addIfAbsent
+        	Leaderboard.getInstance().addIfAbsent(user.facebookID, user.name, user.score);
     	}
     			    			    	    	    	    	
     	
     	return user;
     }
     
+    /**
+     * Updates the profile of a user or inserts the user if she/he does not exist yet.
+     * Retried once if the user has been inserted concurrently (by another login of her/him 
+     * or by a friend's login adding her/him), the second attempt updates the inserted user.
+     * 
+     * @param facebookID
+     * @param profile - fields to set
+     * @param defaults - fields to set on insert only
+     * @return the user without the friend list
+     */
+    private static User upsertProfile(final String facebookID, final Map<String, Object> profile, final Map<String, Object> defaults) {
+    	return Metrics.mongo("users.upsertProfile", new Metrics.Call<User>() {
+			@Override
+			public User call() {
+				try {
+					return findAndUpsertProfile(facebookID, profile, defaults);
+					
+				} catch (MongoException e) {
+					if(!isDuplicateKey(e)) {
+						throw e;
+					}
+					
+					return findAndUpsertProfile(facebookID, profile, defaults);
+				}
+			}
+		});
+    }
+    
+    private static User findAndUpsertProfile(String facebookID, Map<String, Object> profile, Map<String, Object> defaults) {
+    	return users().findAndModify("{facebookID: #}", facebookID)
+    			.with("{$set: #, $setOnInsert: #}", profile, defaults)
+    			.upsert()
+    			.returnNew()
+    			.projection("{facebookFriendIDs: 0}")
+    			.as(User.class);
+    }
+    
+    // inserts report a duplicate key as DuplicateKey, findAndModify as a failed command with its code
+    private static boolean isDuplicateKey(MongoException e) {
+    	return e instanceof MongoException.DuplicateKey || e.getCode() == 11000 || e.getCode() == 11001;
+    }
+    
     public String toString() {
-    	String friendsString = "";
-    	
-    	for(String friend: facebookFriendIDs){
-    		friendsString = friendsString + ", "+friend;
-    	}
-    	
     	return "User \tname: "+this.name
     			+"\n\tlocation: "+this.loc[0]+","+this.loc[1]
     			+"\n\tFacebook ID: "+this.facebookID
-    			+"\n\tfriends ("+facebookFriendIDs.length+"): "+friendsString
+    			+"\n\tfriends: "+SocialGraph.getInstance().numberOfFriends(this.facebookID)
     			+"\n\tGoogle Device ID: "+this.googleCloudDeviceId;
     }
 }
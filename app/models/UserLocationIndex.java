@@ -0,0 +1,300 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import play.Logger;
+import util.GameConfiguration;
+import util.GeoGrid;
+import util.Metrics;
+import util.Util;
+
+/**
+ * In-memory spatial index of all users participating in the game.
+ *
+ * Nearby lookups are answered from here instead of running a $geoNear query
+ * against the database for every request. The index is a grid of cells, each cell
+ * holding the users currently located in it; a lookup only visits the cells
+ * covering the search radius.
+ *
+ * The database is only used to fill the index on application start, afterwards it is kept
+ * up to date on every login and accepted location update (see LocationUpdates).
+ *
+ * All methods are thread-safe and lock-free. Concurrent updates of the same user may
+ * leave an outdated entry in a cell, such entries are repaired or dropped during lookups.
+ *
+ */
+public class UserLocationIndex {
+
+	private static final UserLocationIndex instance = new UserLocationIndex(GameConfiguration.NearbyUsersIndexCellSizeInDegrees);
+
+	/**
+	 * Returns the (shared) index used by the User model
+	 * @return
+	 */
+	public static UserLocationIndex getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Immutable snapshot of the user data needed to answer a lookup
+	 */
+	private static class Entry {
+		final String facebookID;
+		final String name;
+		final double longitude;
+		final double latitude;
+		final long cell;
+
+		Entry(String facebookID, String name, double longitude, double latitude, long cell) {
+			this.facebookID = facebookID;
+			this.name = name;
+			this.longitude = longitude;
+			this.latitude = latitude;
+			this.cell = cell;
+		}
+	}
+
+	private static class Hit {
+		final Entry entry;
+		final double distance;
+
+		Hit(Entry entry, double distance) {
+			this.entry = entry;
+			this.distance = distance;
+		}
+	}
+
+	private static final Comparator<Hit> byDistance = new Comparator<Hit>() {
+		@Override
+		public int compare(Hit h1, Hit h2) {
+			return Double.compare(h1.distance, h2.distance);
+		}
+	};
+
+	private final GeoGrid grid;
+
+	// the current entry of every indexed user, by Facebook ID
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	// cell key -> entries located in that cell, by Facebook ID
+	private final ConcurrentMap<Long, ConcurrentMap<String, Entry>> cells = new ConcurrentHashMap<Long, ConcurrentMap<String, Entry>>();
+
+	public UserLocationIndex(double cellSizeInDegrees) {
+		this.grid = new GeoGrid(cellSizeInDegrees);
+	}
+
+	/**
+	 * Fills the index with all participating users stored in the database,
+	 * to be called once on application start.
+	 */
+	public void loadFromDatabase() {
+		int count = Metrics.mongo("users.loadLocationIndex", new Metrics.Call<Integer>() {
+			@Override
+			public Integer call() {
+				int count = 0;
+
+				for(User user : User.users().find("{participatesInGame: true}").projection("{facebookID: 1, name: 1, loc: 1, participatesInGame: 1}").as(User.class)) {
+					update(user);
+					count++;
+				}
+
+				return count;
+			}
+		});
+
+		Logger.info("Nearby users index loaded " + count + " users");
+	}
+
+	/**
+	 * Adds, moves or removes a user depending on her/his current location and
+	 * whether she/he participates in the game.
+	 *
+	 * @param user
+	 */
+	public void update(User user) {
+		if(user.participatesInGame != null && user.participatesInGame && user.loc != null && user.loc.length >= 2) {
+			this.put(user.facebookID, user.name, user.loc[0], user.loc[1]);
+		} else {
+			this.remove(user.facebookID);
+		}
+	}
+
+	/**
+	 * Adds or moves a user in the index
+	 *
+	 * @param facebookID
+	 * @param name
+	 * @param longitude
+	 * @param latitude
+	 */
+	public void put(String facebookID, String name, double longitude, double latitude) {
+		Entry entry = new Entry(facebookID, name, longitude, latitude, grid.keyOf(longitude, latitude));
+
+		Entry previous = entries.put(facebookID, entry);
+
+		if(previous != null && previous.cell != entry.cell) {
+			removeFromCell(previous);
+		}
+
+		cell(entry.cell).put(facebookID, entry);
+	}
+
+	/**
+	 * Moves a user that is already in the index, does nothing otherwise
+	 *
+	 * @param facebookID
+	 * @param longitude
+	 * @param latitude
+	 */
+	public void move(String facebookID, double longitude, double latitude) {
+		Entry current = entries.get(facebookID);
+
+		if(current != null) {
+			this.put(facebookID, current.name, longitude, latitude);
+		}
+	}
+
+	/**
+	 * Removes a user from the index, e.g. once she/he does not participate anymore
+	 * @param facebookID
+	 */
+	public void remove(String facebookID) {
+		Entry previous = entries.remove(facebookID);
+
+		if(previous != null) {
+			removeFromCell(previous);
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Checks whether a user is in the index and within a distance of a location
+	 *
+	 * @param facebookID
+	 * @param longitude
+	 * @param latitude
+	 * @param maxDistance - in meters
+	 * @return
+	 */
+	public boolean isWithin(String facebookID, double longitude, double latitude, double maxDistance) {
+		Entry entry = entries.get(facebookID);
+
+		return entry != null && Util.distanceInMeters(longitude, latitude, entry.longitude, entry.latitude) <= maxDistance;
+	}
+
+	/**
+	 * Looks up the participating users closest to a location, ordered by distance.
+	 *
+	 * @param loc - geolocation as 2D vector: {longitude, latitude}
+	 * @param maxDistance - maximum distance in meters
+	 * @param limit - maximum number of returned users
+	 * @return
+	 */
+	public List<User> findNearby(Double[] loc, double maxDistance, int limit) {
+		double longitude = loc[0];
+		double latitude = loc[1];
+
+		int columnSpan = grid.columnSpan(latitude, maxDistance);
+		int rowSpan = grid.rowSpan(maxDistance);
+
+		List<Hit> hits = new ArrayList<Hit>();
+
+		if((2L * columnSpan + 1) * (2L * rowSpan + 1) > GameConfiguration.NearbyUsersIndexMaxCellsPerLookup) {
+			// the radius covers too many cells, looking at every user is cheaper
+			collect(entries.values(), longitude, latitude, maxDistance, hits);
+
+		} else {
+			int centerColumn = grid.column(longitude);
+			int centerRow = grid.row(latitude);
+
+			int minRow = Math.max(0, centerRow - rowSpan);
+			int maxRow = Math.min(grid.getRows() - 1, centerRow + rowSpan);
+
+			// do not visit a column twice when the span wraps around the whole globe
+			int columnCount = Math.min(grid.getColumns(), 2 * columnSpan + 1);
+
+			for(int c = 0; c < columnCount; c++) {
+				for(int row = minRow; row <= maxRow; row++) {
+					ConcurrentMap<String, Entry> cell = cells.get(grid.key(centerColumn - columnSpan + c, row));
+
+					if(cell != null) {
+						collect(cell.values(), longitude, latitude, maxDistance, hits);
+					}
+				}
+			}
+		}
+
+		Collections.sort(hits, byDistance);
+
+		List<User> results = new ArrayList<User>(Math.min(limit, hits.size()));
+
+		for(Hit hit : hits) {
+			if(results.size() >= limit) {
+				break;
+			}
+
+			User user = new User(hit.entry.name, hit.entry.facebookID);
+			user.loc = new Double[]{hit.entry.longitude, hit.entry.latitude};
+			user.participatesInGame = true;
+
+			results.add(user);
+		}
+
+		return results;
+	}
+
+	private void collect(Collection<Entry> candidates, double longitude, double latitude, double maxDistance, List<Hit> hits) {
+		for(Entry entry : candidates) {
+			Entry current = entries.get(entry.facebookID);
+
+			if(current != entry) {
+				// outdated entry left behind by concurrent updates of the same user
+				if(current == null || current.cell != entry.cell) {
+					removeFromCell(entry);
+					continue;
+				}
+
+				cell(entry.cell).replace(entry.facebookID, entry, current);
+				entry = current;
+			}
+
+			double distance = Util.distanceInMeters(longitude, latitude, entry.longitude, entry.latitude);
+
+			if(distance <= maxDistance) {
+				hits.add(new Hit(entry, distance));
+			}
+		}
+	}
+
+	private ConcurrentMap<String, Entry> cell(long key) {
+		ConcurrentMap<String, Entry> cell = cells.get(key);
+
+		if(cell == null) {
+			ConcurrentMap<String, Entry> newCell = new ConcurrentHashMap<String, Entry>();
+
+			cell = cells.putIfAbsent(key, newCell);
+			if(cell == null) {
+				cell = newCell;
+			}
+		}
+
+		return cell;
+	}
+
+	private void removeFromCell(Entry entry) {
+		ConcurrentMap<String, Entry> cell = cells.get(entry.cell);
+
+		if(cell != null) {
+			cell.remove(entry.facebookID, entry);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package util;
+
+import play.libs.Akka;
+import scala.concurrent.ExecutionContext;
+
+/**
+ * Thread pools for blocking calls, so that a slow dependency only blocks the threads
+ * meant for it and not the ones serving other requests.
+ *
+ * The pools are Akka dispatchers configured in conf/application.conf (contexts.*).
+ * Push notifications are sent by the workers of PushNotifications, which are
+ * a pool of their own.
+ *
+ */
+public class ExecutionContexts {
+
+	// dispatchers of the running application's actor system, see open()
+	private static volatile ExecutionContext facebook;
+	private static volatile ExecutionContext database;
+
+	/**
+	 * Looks up the dispatchers, to be called on application start
+	 */
+	public static void open() {
+		facebook = Akka.system().dispatchers().lookup("contexts.facebook");
+		database = Akka.system().dispatchers().lookup("contexts.database");
+	}
+
+	/**
+	 * Drops the dispatchers, to be called on application stop: they belong to the actor system
+	 * of the stopped application
+	 */
+	public static void close() {
+		facebook = null;
+		database = null;
+	}
+
+	/**
+	 * For requests to the Facebook Graph API, e.g. on login
+	 * @return
+	 */
+	public static ExecutionContext facebook() {
+		ExecutionContext context = facebook;
+		return context != null ? context : Akka.system().dispatchers().lookup("contexts.facebook");
+	}
+
+	/**
+	 * For database requests
+	 * @return
+	 */
+	public static ExecutionContext database() {
+		ExecutionContext context = database;
+		return context != null ? context : Akka.system().dispatchers().lookup("contexts.database");
+	}
+}
@@ -15,12 +15,80 @@ public class GameConfiguration {
 	public static String googleAppID = "";
 	public static String googleAppKey = "";
 	
+	// endpoints of Facebook's Graph API and of GCM, null for the real services;
+	// set from application.conf (facebook.graphEndpoint, gcm.sendEndpoint) on start, e.g. to the stand-ins of the load test
+	public static String FacebookGraphEndpointUrl = null;
+	public static String GcmSendEndpointUrl = null;
+	
+	// friend lists requested from Facebook are not requested again on login for this time (seconds),
+	// at most this many friend lists are kept in memory
+	public static long FriendListCacheTTLInSeconds = 6 * 3600;
+	public static long FriendListCacheMaxSize = 100000;
+	
+	// push delivery: worker threads sending to GCM and the maximum number of queued messages
+	public static int PushWorkerThreads = 4;
+	public static int PushQueueCapacity = 10000;
+	// failed deliveries are retried with exponential backoff (milliseconds)
+	public static int PushMaxRetries = 3;
+	public static long PushRetryInitialBackoffInMillis = 1000;
+	public static long PushRetryMaxBackoffInMillis = 30000;
+	// identical messages queued within this window are sent as one multicast request,
+	// GCM accepts at most 1000 devices per request
+	public static long PushCoalescingWindowInMillis = 5;
+	public static int PushMaxMulticastSize = 1000;
+	// time given to deliver the queued messages when the application stops
+	public static long PushShutdownTimeoutInMillis = 5000;
+	
 	// limits the maximum distance for user lookups (meters)
 	public static double MaxDistanceOfUserForNearbyUsers = 100.0;
 	public static int MaxNumberOfReturnedUsers = 20;
 	
-	// this is the time to live for a user login to be still valid
-	// e.g. if chosen as an opponent the user has to logged less than these seconds ago
+	// at most this many nearby friends of friends are considered as opponents when no friend is nearby
+	public static int MaxNumberOfFriendsOfFriendsForOpponents = 1000;
+	
+	// maximum number of users returned by a leaderboard request
+	public static int MaxNumberOfLeaderboardUsers = 100;
+	
+	// cell size of the in-memory index answering nearby lookups (degrees, 0.01 is roughly 1km)
+	public static double NearbyUsersIndexCellSizeInDegrees = 0.01;
+	// lookups that would have to visit more cells than this scan all indexed users instead
+	public static int NearbyUsersIndexMaxCellsPerLookup = 1024;
+	
+	// number of partitions of the in-memory game sessions, the games of a partition are changed by one thread at a time
+	public static int GameSessionPartitions = 64;
+	// delay between writing the changes of running games to the database
+	public static long GameSessionWriteBehindIntervalInMillis = 500;
+	// games without requests for this long are removed from memory (they are still in the database)
+	public static long GameSessionIdleTimeoutInSeconds = 3600;
+	
+	// number of games shown on the game statistics page
+	public static int NumberOfRecentGamesInStatistics = 50;
+	// maximum number of games per page of the game history
+	public static int MaxNumberOfGamesPerPage = 100;
+	
+	// location updates moving a user less than this are dropped (meters)
+	public static double LocationUpdateDeadBandInMeters = 10.0;
+	// delay between writing the accepted locations to the database
+	public static long LocationUpdateFlushIntervalInMillis = 5000;
+	// maximum number of users whose last location is remembered
+	public static long LocationUpdateCacheMaxSize = 100000;
+	
+	// opponents of game requests: "friends" (nearby friends only, see Game.findOpponent) or "open" (any nearby
+	// player waiting for a game, see Matchmaker); set from application.conf (matchmaking.mode) on start
+	public static String MatchmakingMode = "friends";
+	// players waiting for an opponent are removed from the queue after this time
+	public static long MatchmakingMaxWaitInSeconds = 120;
+	// delay between removing the players that waited too long or left from all queues
+	public static long MatchmakingSweepIntervalInSeconds = 10;
+	// at most this many waiting players of a cell are looked at per request
+	public static int MatchmakingMaxCandidatesPerCell = 32;
+	
+	// this is the time to live for a user login to be still valid: users without activity
+	// (login, location update, game request) for this time are offline and no longer participate (see Presence)
 	public static long MaxTimeForLoginTimeOutInSeconds = 3600;
+	// resolution of the session timeouts
+	public static long PresenceTickInMillis = 1000;
+	// the participation of at most this many expired users is ended with one database update
+	public static int PresenceWriteBatchSize = 1000;
 
 }
@@ -0,0 +1,114 @@
+package util;
+
+/**
+ * Maps geolocations onto a regular grid of cells on the longitude/latitude plane.
+ *
+ * A cell is addressed by a single long key, so it can be used directly as a hash key
+ * for in-memory spatial lookups. Neighbouring cells are found by simply moving the
+ * column/row, longitudes wrap around at the date line.
+ *
+ */
+public class GeoGrid {
+
+	// approximate length of one degree of latitude (meters)
+	public static final double MetersPerDegree = 111320.0;
+
+	private final double cellSizeInDegrees;
+	private final int columns;
+	private final int rows;
+
+	/**
+	 * @param cellSizeInDegrees - edge length of a cell in degrees
+	 */
+	public GeoGrid(double cellSizeInDegrees) {
+		this.cellSizeInDegrees = cellSizeInDegrees;
+		this.columns = (int) Math.ceil(360.0 / cellSizeInDegrees);
+		this.rows = (int) Math.ceil(180.0 / cellSizeInDegrees);
+	}
+
+	public int column(double longitude) {
+		int column = (int) Math.floor((longitude + 180.0) / cellSizeInDegrees);
+
+		// wrap around the date line
+		column = column % columns;
+		if(column < 0) {
+			column += columns;
+		}
+		return column;
+	}
+
+	public int row(double latitude) {
+		int row = (int) Math.floor((latitude + 90.0) / cellSizeInDegrees);
+
+		return Math.max(0, Math.min(rows - 1, row));
+	}
+
+	/**
+	 * Key of the cell at column/row, columns outside of the grid are wrapped around
+	 * @param column
+	 * @param row
+	 * @return
+	 */
+	public long key(int column, int row) {
+		column = column % columns;
+		if(column < 0) {
+			column += columns;
+		}
+		return ((long) column << 32) | (row & 0xffffffffL);
+	}
+
+	/**
+	 * Key of the cell containing the location
+	 * @param longitude
+	 * @param latitude
+	 * @return
+	 */
+	public long keyOf(double longitude, double latitude) {
+		return key(column(longitude), row(latitude));
+	}
+
+	/**
+	 * Number of cells that have to be looked at in each direction from the center cell
+	 * to cover a radius around the location (longitude direction).
+	 *
+	 * A degree of longitude shrinks towards the poles, so the span is computed at the edge of the
+	 * radius closest to the pole, where it is widest. All columns are looked at if the radius
+	 * reaches the pole.
+	 *
+	 * @param latitude
+	 * @param radiusInMeters
+	 * @return
+	 */
+	public int columnSpan(double latitude, double radiusInMeters) {
+		double polewardLatitude = Math.abs(latitude) + radiusInMeters / MetersPerDegree;
+
+		if(polewardLatitude >= 90.0) {
+			return columns;
+		}
+
+		double degrees = radiusInMeters / (MetersPerDegree * Math.cos(Math.toRadians(polewardLatitude)));
+
+		return (int) Math.min(columns, Math.ceil(degrees / cellSizeInDegrees));
+	}
+
+	/**
+	 * Number of cells that have to be looked at in each direction from the center cell
+	 * to cover a radius around the location (latitude direction).
+	 *
+	 * @param radiusInMeters
+	 * @return
+	 */
+	public int rowSpan(double radiusInMeters) {
+		double degrees = radiusInMeters / MetersPerDegree;
+
+		return (int) Math.min(rows, Math.ceil(degrees / cellSizeInDegrees));
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+}
@@ -0,0 +1,79 @@
+package util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns dense integer IDs (0, 1, 2, ...) to string IDs, e.g. Facebook IDs, so that
+ * in-memory structures can hold ints in arrays instead of strings in maps.
+ *
+ * IDs are never released. Lookups are lock-free, new IDs are assigned one at a time.
+ *
+ */
+public class IdInterner {
+
+	private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	// int ID -> string ID, only grows
+	private volatile String[] names = new String[1024];
+
+	// guarded by this
+	private int size = 0;
+
+	/**
+	 * Returns the int ID of a string ID, a new one if it has none yet
+	 * @param id
+	 * @return
+	 */
+	public int intern(String id) {
+		Integer existing = ids.get(id);
+
+		if(existing != null) {
+			return existing;
+		}
+
+		synchronized(this) {
+			existing = ids.get(id);
+
+			if(existing != null) {
+				return existing;
+			}
+
+			if(size == names.length) {
+				names = Arrays.copyOf(names, 2 * size);
+			}
+
+			names[size] = id;
+			// published after the name, so that a reader finding the ID finds the name as well
+			ids.put(id, size);
+
+			return size++;
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return the int ID of a string ID, -1 if it has none
+	 */
+	public int lookup(String id) {
+		Integer existing = ids.get(id);
+		return existing == null ? -1 : existing;
+	}
+
+	/**
+	 * @param intID
+	 * @return the string ID of an int ID
+	 */
+	public String name(int intID) {
+		return names[intID];
+	}
+
+	/**
+	 * Number of assigned IDs, all int IDs are less than this
+	 * @return
+	 */
+	public int size() {
+		return ids.size();
+	}
+}
@@ -0,0 +1,100 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+import play.libs.Json;
+
+/**
+ * Streams the elements of an iterator as a JSON array.
+ *
+ * Elements are only taken from the iterator (e.g. a database cursor) when the reader needs
+ * more bytes, so at most one element is held in memory at a time, however long the array is.
+ * Used to send large responses in chunks, see Application.exportGames.
+ *
+ */
+public class JsonArrayInputStream extends InputStream {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Iterator<?> elements;
+	private final Closeable source;
+
+	// bytes of the current element (with separator) and the read position in it
+	private byte[] buffer = "[".getBytes(UTF8);
+	private int position = 0;
+
+	private boolean first = true;
+	private boolean finished = false;
+
+	/**
+	 * @param elements - elements, converted to JSON with Json.toJson
+	 * @param source - closed when the stream is closed or all elements have been read, may be null
+	 */
+	public JsonArrayInputStream(Iterator<?> elements, Closeable source) {
+		this.elements = elements;
+		this.source = source;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(!fill()) {
+			return -1;
+		}
+
+		return buffer[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if(length == 0) {
+			return 0;
+		}
+
+		if(!fill()) {
+			return -1;
+		}
+
+		int count = Math.min(length, buffer.length - position);
+		System.arraycopy(buffer, position, bytes, offset, count);
+		position += count;
+
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		finished = true;
+
+		if(source != null) {
+			source.close();
+		}
+	}
+
+	// makes sure there are unread bytes in the buffer, false at the end of the array
+	private boolean fill() throws IOException {
+		while(position >= buffer.length) {
+			if(finished) {
+				return false;
+			}
+
+			if(elements.hasNext()) {
+				String json = Json.toJson(elements.next()).toString();
+
+				buffer = (first ? json : "," + json).getBytes(UTF8);
+				first = false;
+
+			} else {
+				buffer = "]".getBytes(UTF8);
+				close();
+			}
+
+			position = 0;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,184 @@
+package util;
+
+/**
+ * A JSON object with a fixed schema, precompiled into constant fragments with slots
+ * for the variable members.
+ *
+ * Encoding a message only appends the fragments and the escaped values to a buffer that
+ * is reused by the thread, so apart from the resulting string nothing is allocated.
+ * The string is meant to be shared by all recipients of the message.
+ *
+ * Usage:
+ * <pre>
+ * JsonTemplate template = new JsonTemplate(new String[] {"type", "game"}, "gameID", "score");
+ * String json = template.start().string(game.id).number(user.score).end();
+ * // {"type":"game","gameID":"...","score":42.0}
+ * </pre>
+ *
+ * A thread can only encode one message at a time.
+ *
+ */
+public class JsonTemplate {
+
+	private static final char[] Hex = "0123456789abcdef".toCharArray();
+
+	private static final ThreadLocal<Writer> writers = new ThreadLocal<Writer>() {
+		@Override
+		protected Writer initialValue() {
+			return new Writer();
+		}
+	};
+
+	// fragments[i] is written before the value of slot i, the last one closes the object
+	private final String[] fragments;
+
+	/**
+	 * @param constantMembers - names and (string) values of the members that never change, alternating
+	 * @param slots - names of the variable members, in the order their values are written
+	 */
+	public JsonTemplate(String[] constantMembers, String... slots) {
+		if(constantMembers.length % 2 != 0) {
+			throw new IllegalArgumentException("Constant members must be pairs of names and values");
+		}
+
+		StringBuilder fragment = new StringBuilder("{");
+
+		for(int i = 0; i < constantMembers.length; i += 2) {
+			if(i > 0) {
+				fragment.append(',');
+			}
+			escape(constantMembers[i], fragment);
+			fragment.append(':');
+			escape(constantMembers[i + 1], fragment);
+		}
+
+		fragments = new String[slots.length + 1];
+
+		for(int i = 0; i < slots.length; i++) {
+			if(i > 0 || constantMembers.length > 0) {
+				fragment.append(',');
+			}
+			escape(slots[i], fragment);
+			fragment.append(':');
+
+			fragments[i] = fragment.toString();
+			fragment.setLength(0);
+		}
+
+		fragments[slots.length] = fragment.append('}').toString();
+	}
+
+	/**
+	 * Starts encoding a message, the values of all slots have to be written before calling end
+	 * @return the writer of the calling thread
+	 */
+	public Writer start() {
+		Writer writer = writers.get();
+
+		writer.template = this;
+		writer.slot = 0;
+		writer.buffer.setLength(0);
+
+		return writer;
+	}
+
+	/**
+	 * Writes the values of a template's slots, reused by its thread
+	 */
+	public static class Writer {
+		private final StringBuilder buffer = new StringBuilder(256);
+
+		private JsonTemplate template;
+		private int slot;
+
+		private Writer() {
+		}
+
+		public Writer string(String value) {
+			next();
+
+			if(value == null) {
+				buffer.append("null");
+			} else {
+				escape(value, buffer);
+			}
+
+			return this;
+		}
+
+		public Writer number(long value) {
+			next();
+			buffer.append(value);
+			return this;
+		}
+
+		public Writer number(Double value) {
+			next();
+
+			if(value == null || value.isNaN() || value.isInfinite()) {
+				buffer.append("null");
+			} else {
+				buffer.append(value.doubleValue());
+			}
+
+			return this;
+		}
+
+		/**
+		 * @return the encoded message
+		 */
+		public String end() {
+			if(template == null || slot != template.fragments.length - 1) {
+				throw new IllegalStateException("Not all slots of the template have been written");
+			}
+
+			buffer.append(template.fragments[slot]);
+			template = null;
+
+			return buffer.toString();
+		}
+
+		private void next() {
+			if(template == null || slot >= template.fragments.length - 1) {
+				throw new IllegalStateException("More values than slots in the template");
+			}
+
+			buffer.append(template.fragments[slot++]);
+		}
+	}
+
+	// appends a JSON string literal
+	private static void escape(String value, StringBuilder out) {
+		out.append('"');
+
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			switch(c) {
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			default:
+				if(c < 0x20) {
+					out.append("\\u00").append(Hex[c >> 4]).append(Hex[c & 0xf]);
+				} else {
+					out.append(c);
+				}
+			}
+		}
+
+		out.append('"');
+	}
+}
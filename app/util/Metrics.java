@@ -0,0 +1,251 @@
+package util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of latency histograms and error counts: of every route (see Global.onRequest)
+ * and of every call to the database, Facebook and GCM.
+ *
+ * Histograms have fixed buckets and are updated lock-free, so recording is cheap enough
+ * to be done on every request. The registry is written in the Prometheus text format
+ * by the /metrics route.
+ *
+ * Usage:
+ * <pre>
+ * User user = Metrics.mongo("users.findOne", new Metrics.Call&lt;User&gt;() {
+ *     public User call() {
+ *         return ...;
+ *     }
+ * });
+ * </pre>
+ * A call that throws a RuntimeException is counted as error. Calls that do not fit into
+ * a Call are measured with a Timer (see Metrics.mongo(operation)): failed() and stop().
+ *
+ */
+public class Metrics {
+
+	// upper bounds of the histogram buckets, in seconds
+	private static final double[] Buckets = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+	private static final String RouteFamily = "http_request";
+	private static final String DependencyFamily = "dependency";
+
+	/**
+	 * Latencies and errors of one route or operation
+	 */
+	public static class Histogram {
+		private final String labels;
+
+		private final AtomicLongArray bucketCounts = new AtomicLongArray(Buckets.length);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sumInNanos = new AtomicLong();
+		private final AtomicLong errorCount = new AtomicLong();
+
+		Histogram(String labels) {
+			this.labels = labels;
+		}
+
+		public void record(long durationInNanos, boolean failed) {
+			double seconds = durationInNanos / 1e9;
+
+			// only the first matching bucket is counted, buckets are summed up when written
+			for(int i = 0; i < Buckets.length; i++) {
+				if(seconds <= Buckets[i]) {
+					bucketCounts.incrementAndGet(i);
+					break;
+				}
+			}
+
+			count.incrementAndGet();
+			sumInNanos.addAndGet(durationInNanos);
+
+			if(failed) {
+				errorCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * A call to a dependency, see the class comment
+	 */
+	public interface Call<T> {
+		T call();
+	}
+
+	/**
+	 * Measures one call, see the class comment
+	 */
+	public static class Timer {
+		private final Histogram histogram;
+		private final long start = System.nanoTime();
+		private boolean failed = false;
+
+		Timer(Histogram histogram) {
+			this.histogram = histogram;
+		}
+
+		public void failed() {
+			failed = true;
+		}
+
+		public void stop() {
+			histogram.record(System.nanoTime() - start, failed);
+		}
+	}
+
+	// family -> labels -> histogram, sorted for a stable output
+	private static final ConcurrentMap<String, ConcurrentMap<String, Histogram>> families = new ConcurrentSkipListMap<String, ConcurrentMap<String, Histogram>>();
+
+	/**
+	 * Returns the histogram of a route
+	 * @param route - e.g. Application.loginUser
+	 * @return
+	 */
+	public static Histogram route(String route) {
+		return histogram(RouteFamily, "route=\"" + escape(route) + "\"");
+	}
+
+	/**
+	 * Starts measuring a database operation
+	 * @param operation - e.g. users.findOne
+	 * @return
+	 */
+	public static Timer mongo(String operation) {
+		return dependency("mongo", operation);
+	}
+
+	/**
+	 * Starts measuring a Facebook Graph API request
+	 * @param operation
+	 * @return
+	 */
+	public static Timer facebook(String operation) {
+		return dependency("facebook", operation);
+	}
+
+	/**
+	 * Starts measuring a push notification operation
+	 * @param operation
+	 * @return
+	 */
+	public static Timer push(String operation) {
+		return dependency("push", operation);
+	}
+
+	/**
+	 * Measures a database operation
+	 * @param operation - e.g. users.findOne
+	 * @param call
+	 * @return the result of the call
+	 */
+	public static <T> T mongo(String operation, Call<T> call) {
+		return measure(mongo(operation), call);
+	}
+
+	/**
+	 * Measures a Facebook Graph API request
+	 * @param operation
+	 * @param call
+	 * @return the result of the call
+	 */
+	public static <T> T facebook(String operation, Call<T> call) {
+		return measure(facebook(operation), call);
+	}
+
+	private static <T> T measure(Timer timer, Call<T> call) {
+		try {
+			return call.call();
+		} catch (RuntimeException e) {
+			timer.failed();
+			throw e;
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private static Timer dependency(String dependency, String operation) {
+		return new Timer(histogram(DependencyFamily, "dependency=\"" + dependency + "\",operation=\"" + escape(operation) + "\""));
+	}
+
+	private static Histogram histogram(String family, String labels) {
+		ConcurrentMap<String, Histogram> histograms = families.get(family);
+
+		if(histograms == null) {
+			ConcurrentMap<String, Histogram> newHistograms = new ConcurrentSkipListMap<String, Histogram>();
+
+			histograms = families.putIfAbsent(family, newHistograms);
+			if(histograms == null) {
+				histograms = newHistograms;
+			}
+		}
+
+		Histogram histogram = histograms.get(labels);
+
+		if(histogram == null) {
+			Histogram newHistogram = new Histogram(labels);
+
+			histogram = histograms.putIfAbsent(labels, newHistogram);
+			if(histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+
+		return histogram;
+	}
+
+	/**
+	 * Writes all histograms and error counts in the Prometheus text format
+	 * @param out
+	 */
+	public static void writeTo(StringBuilder out) {
+		for(Map.Entry<String, ConcurrentMap<String, Histogram>> family : families.entrySet()) {
+			String name = family.getKey() + "_duration_seconds";
+
+			out.append("# TYPE ").append(name).append(" histogram\n");
+
+			for(Histogram histogram : family.getValue().values()) {
+				long cumulative = 0;
+
+				for(int i = 0; i < Buckets.length; i++) {
+					cumulative += histogram.bucketCounts.get(i);
+					out.append(name).append("_bucket{").append(histogram.labels).append(",le=\"").append(Buckets[i]).append("\"} ").append(cumulative).append('\n');
+				}
+
+				// read after the buckets, so that +Inf is never less than the last bucket
+				long count = Math.max(cumulative, histogram.count.get());
+
+				out.append(name).append("_bucket{").append(histogram.labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+				out.append(name).append("_sum{").append(histogram.labels).append("} ").append(histogram.sumInNanos.get() / 1e9).append('\n');
+				out.append(name).append("_count{").append(histogram.labels).append("} ").append(count).append('\n');
+			}
+
+			String errors = family.getKey() + "_errors_total";
+
+			out.append("# TYPE ").append(errors).append(" counter\n");
+
+			for(Histogram histogram : family.getValue().values()) {
+				out.append(errors).append('{').append(histogram.labels).append("} ").append(histogram.errorCount.get()).append('\n');
+			}
+		}
+	}
+
+	/**
+	 * Writes a single value in the Prometheus text format
+	 * @param out
+	 * @param name
+	 * @param type - gauge or counter
+	 * @param value
+	 */
+	public static void writeTo(StringBuilder out, String name, String type, double value) {
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static String escape(String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
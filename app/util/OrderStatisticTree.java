@@ -0,0 +1,223 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sorted set that also answers "which element is at position i" and
+ * "at which position is this element" in O(log n).
+ *
+ * Implemented as a treap (randomized balanced binary search tree) whose nodes know the
+ * size of their subtree. Not thread-safe.
+ *
+ * @param <T> element type, ordered by the given comparator
+ */
+public class OrderStatisticTree<T> {
+
+	private static class Node<T> {
+		final T value;
+		final int priority;
+		Node<T> left;
+		Node<T> right;
+		int size = 1;
+
+		Node(T value, int priority) {
+			this.value = value;
+			this.priority = priority;
+		}
+	}
+
+	private final Comparator<? super T> comparator;
+	private final Random random = new Random();
+
+	private Node<T> root;
+
+	public OrderStatisticTree(Comparator<? super T> comparator) {
+		this.comparator = comparator;
+	}
+
+	public int size() {
+		return size(root);
+	}
+
+	/**
+	 * Adds an element, unless an equal element is already contained
+	 * @param value
+	 * @return false if an equal element is already contained
+	 */
+	public boolean add(T value) {
+		if(indexOf(value) >= 0) {
+			return false;
+		}
+
+		root = insert(root, new Node<T>(value, random.nextInt()));
+		return true;
+	}
+
+	/**
+	 * Removes the element equal to the given one
+	 * @param value
+	 * @return false if no such element is contained
+	 */
+	public boolean remove(T value) {
+		int sizeBefore = size();
+		root = delete(root, value);
+		return size() < sizeBefore;
+	}
+
+	/**
+	 * Returns the element at a position
+	 * @param index - 0 for the first element
+	 * @return
+	 */
+	public T get(int index) {
+		if(index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		}
+
+		Node<T> node = root;
+
+		while(true) {
+			int leftSize = size(node.left);
+
+			if(index < leftSize) {
+				node = node.left;
+			} else if(index > leftSize) {
+				index -= leftSize + 1;
+				node = node.right;
+			} else {
+				return node.value;
+			}
+		}
+	}
+
+	/**
+	 * Returns the position of an element
+	 * @param value
+	 * @return 0 for the first element, -1 if not contained
+	 */
+	public int indexOf(T value) {
+		Node<T> node = root;
+		int index = 0;
+
+		while(node != null) {
+			int cmp = comparator.compare(value, node.value);
+
+			if(cmp < 0) {
+				node = node.left;
+			} else if(cmp > 0) {
+				index += size(node.left) + 1;
+				node = node.right;
+			} else {
+				return index + size(node.left);
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns the first elements in order
+	 * @param count - maximum number of returned elements
+	 * @return
+	 */
+	public List<T> head(int count) {
+		List<T> result = new ArrayList<T>(Math.max(0, Math.min(count, size())));
+		head(root, count, result);
+		return result;
+	}
+
+	private void head(Node<T> node, int count, List<T> result) {
+		if(node == null || result.size() >= count) {
+			return;
+		}
+
+		head(node.left, count, result);
+
+		if(result.size() < count) {
+			result.add(node.value);
+			head(node.right, count, result);
+		}
+	}
+
+	private Node<T> insert(Node<T> node, Node<T> newNode) {
+		if(node == null) {
+			return newNode;
+		}
+
+		if(comparator.compare(newNode.value, node.value) < 0) {
+			node.left = insert(node.left, newNode);
+
+			if(node.left.priority > node.priority) {
+				node = rotateRight(node);
+			}
+		} else {
+			node.right = insert(node.right, newNode);
+
+			if(node.right.priority > node.priority) {
+				node = rotateLeft(node);
+			}
+		}
+
+		update(node);
+		return node;
+	}
+
+	private Node<T> delete(Node<T> node, T value) {
+		if(node == null) {
+			return null;
+		}
+
+		int cmp = comparator.compare(value, node.value);
+
+		if(cmp < 0) {
+			node.left = delete(node.left, value);
+		} else if(cmp > 0) {
+			node.right = delete(node.right, value);
+		} else {
+			// rotate the node down until it has at most one child
+			if(node.left == null) {
+				return node.right;
+			} else if(node.right == null) {
+				return node.left;
+			} else if(node.left.priority > node.right.priority) {
+				node = rotateRight(node);
+				node.right = delete(node.right, value);
+			} else {
+				node = rotateLeft(node);
+				node.left = delete(node.left, value);
+			}
+		}
+
+		update(node);
+		return node;
+	}
+
+	private Node<T> rotateRight(Node<T> node) {
+		Node<T> left = node.left;
+		node.left = left.right;
+		left.right = node;
+		update(node);
+		update(left);
+		return left;
+	}
+
+	private Node<T> rotateLeft(Node<T> node) {
+		Node<T> right = node.right;
+		node.right = right.left;
+		right.left = node;
+		update(node);
+		update(right);
+		return right;
+	}
+
+	private static <T> int size(Node<T> node) {
+		return node == null ? 0 : node.size;
+	}
+
+	private static <T> void update(Node<T> node) {
+		node.size = 1 + size(node.left) + size(node.right);
+	}
+}
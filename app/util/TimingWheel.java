@@ -0,0 +1,199 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hierarchical timing wheel: expires a large number of timeouts with O(1) work per timeout.
+ *
+ * The first level has a slot per tick, every further level has a slot per revolution of the
+ * level below it; a timeout is filed into the slot of the finest level that reaches its
+ * deadline and moves down a level whenever the level above turns over (cascading).
+ *
+ * Deadlines can be extended without touching the wheel: a timeout whose slot comes up before
+ * its (extended) deadline is simply filed again, so frequently extended timeouts cost nothing
+ * until they are about to expire.
+ *
+ * schedule and advance are synchronized, extend and cancel are lock-free.
+ *
+ */
+public class TimingWheel<T> {
+
+	private static final int SlotBits = 6;
+	private static final int Slots = 1 << SlotBits;
+	private static final int SlotMask = Slots - 1;
+
+	// deadline of timeouts that expired or have been cancelled
+	private static final long Done = -1;
+
+	/**
+	 * A scheduled timeout
+	 */
+	public static class Timeout<T> {
+		private final T value;
+		private final AtomicLong deadlineInMillis;
+
+		private Timeout(T value, long deadlineInMillis) {
+			this.value = value;
+			this.deadlineInMillis = new AtomicLong(deadlineInMillis);
+		}
+
+		public T getValue() {
+			return value;
+		}
+
+		/**
+		 * Moves the deadline, only later deadlines take effect before the current one is reached
+		 * @param deadlineInMillis
+		 * @return false if the timeout already expired or has been cancelled
+		 */
+		public boolean extend(long deadlineInMillis) {
+			while(true) {
+				long current = this.deadlineInMillis.get();
+
+				if(current == Done) {
+					return false;
+				}
+
+				if(this.deadlineInMillis.compareAndSet(current, Math.max(current, deadlineInMillis))) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return false if the timeout already expired or has been cancelled
+		 */
+		public boolean cancel() {
+			return deadlineInMillis.getAndSet(Done) != Done;
+		}
+
+		public boolean isDone() {
+			return deadlineInMillis.get() == Done;
+		}
+	}
+
+	private final long tickInMillis;
+
+	// [level][slot] -> timeouts
+	private final List<List<Timeout<T>>> slots = new ArrayList<List<Timeout<T>>>();
+	private final int levels;
+
+	private long currentTick;
+	private int size = 0;
+
+	/**
+	 * @param tickInMillis - resolution of the deadlines
+	 * @param levels - the wheel reaches 64^levels ticks, later deadlines are filed again when reached
+	 * @param nowInMillis - start time
+	 */
+	public TimingWheel(long tickInMillis, int levels, long nowInMillis) {
+		this.tickInMillis = tickInMillis;
+		this.levels = levels;
+		this.currentTick = nowInMillis / tickInMillis;
+
+		for(int i = 0; i < levels * Slots; i++) {
+			slots.add(new ArrayList<Timeout<T>>());
+		}
+	}
+
+	/**
+	 * Schedules a timeout
+	 * @param value
+	 * @param deadlineInMillis
+	 * @return the timeout, to extend or cancel it
+	 */
+	public synchronized Timeout<T> schedule(T value, long deadlineInMillis) {
+		Timeout<T> timeout = new Timeout<T>(value, deadlineInMillis);
+
+		file(timeout, deadlineInMillis / tickInMillis);
+		size++;
+
+		return timeout;
+	}
+
+	/**
+	 * Moves the wheel forward to a point in time
+	 * @param nowInMillis
+	 * @param expired - receives the values of the timeouts that expired
+	 */
+	public synchronized void advance(long nowInMillis, List<T> expired) {
+		long nowTick = nowInMillis / tickInMillis;
+
+		while(currentTick < nowTick) {
+			currentTick++;
+
+			// the coarsest level first, so its timeouts can cascade down to the current tick
+			for(int level = levels - 1; level > 0; level--) {
+				if((currentTick & ((1L << (SlotBits * level)) - 1)) == 0) {
+					refile(slot(level, currentTick >>> (SlotBits * level)), nowInMillis, expired);
+				}
+			}
+
+			refile(slot(0, currentTick), nowInMillis, expired);
+		}
+	}
+
+	/**
+	 * Number of scheduled timeouts, including cancelled ones that have not been dropped yet
+	 * @return
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	// takes all timeouts out of a slot, expires the due ones and files the others again
+	private void refile(List<Timeout<T>> slot, long nowInMillis, List<T> expired) {
+		if(slot.isEmpty()) {
+			return;
+		}
+
+		List<Timeout<T>> timeouts = new ArrayList<Timeout<T>>(slot);
+		slot.clear();
+
+		for(Timeout<T> timeout : timeouts) {
+			while(true) {
+				long deadline = timeout.deadlineInMillis.get();
+
+				if(deadline == Done) {
+					size--;
+					break;
+				}
+
+				long deadlineTick = deadline / tickInMillis;
+
+				if(deadlineTick > currentTick) {
+					file(timeout, deadlineTick);
+					break;
+				}
+
+				// fails if the deadline has just been extended
+				if(timeout.deadlineInMillis.compareAndSet(deadline, Done)) {
+					size--;
+					expired.add(timeout.value);
+					break;
+				}
+			}
+		}
+	}
+
+	private void file(Timeout<T> timeout, long deadlineTick) {
+		// due timeouts are expired with the next tick
+		long delta = Math.max(1, deadlineTick - currentTick);
+
+		for(int level = 0; level < levels; level++) {
+			if(delta < (1L << (SlotBits * (level + 1))) || level == levels - 1) {
+				// deadlines beyond the wheel are filed into the last slot it reaches
+				long tick = Math.min(currentTick + delta, currentTick + (1L << (SlotBits * (level + 1))) - 1);
+
+				slot(level, tick >>> (SlotBits * level)).add(timeout);
+				return;
+			}
+		}
+	}
+
+	private List<Timeout<T>> slot(int level, long index) {
+		return slots.get(level * Slots + (int) (index & SlotMask));
+	}
+}
@@ -8,22 +8,123 @@ package util;
  */
 public class Util {
 	
+	// mean earth radius (3958.75 miles)
+	public static final double EarthRadiusInMeters = 6371000.0;
+
 	/*
 	 * Converts two locations to a distance in meters, taken from:
 	 * http://stackoverflow.com/questions/837872/calculate-distance-in-meters-when-you-know-longitude-and-latitude-in-java
+	 *
+	 * Boxed version of distanceInMeters
 	 */
 	public static Double geoLocToDistInMeters(Double loc, Double loc2, Double loc3, Double loc4) {
-	    double earthRadius = 3958.75;
-	    double dLat = Math.toRadians(loc4-loc2);
-	    double dLng = Math.toRadians(loc3-loc);
-	    double a = Math.sin(dLat/2) * Math.sin(dLat/2) +
-	               Math.cos(Math.toRadians(loc2)) * Math.cos(Math.toRadians(loc4)) *
-	               Math.sin(dLng/2) * Math.sin(dLng/2);
-	    double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
-	    double dist = earthRadius * c;
-
-	    int meterConversion = 1609;
-
-	    return Math.abs((dist * meterConversion));
-	    }
+		return distanceInMeters(loc, loc2, loc3, loc4);
+	}
+
+	/**
+	 * Distance between two locations in meters (haversine formula)
+	 *
+	 * @param longitude1 - in degrees
+	 * @param latitude1
+	 * @param longitude2
+	 * @param latitude2
+	 * @return
+	 */
+	public static double distanceInMeters(double longitude1, double latitude1, double longitude2, double latitude2) {
+		double a = haversine(longitude1, latitude1, Math.cos(Math.toRadians(latitude1)), longitude2, latitude2);
+
+		return 2 * EarthRadiusInMeters * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+	}
+
+	/**
+	 * Computes the distances from one location to many.
+	 *
+	 * @param longitude - of the origin, in degrees
+	 * @param latitude
+	 * @param longitudes - of the other locations
+	 * @param latitudes
+	 * @param count - number of other locations
+	 * @param distances - receives the distances in meters, at least count long
+	 */
+	public static void distancesInMeters(double longitude, double latitude, double[] longitudes, double[] latitudes, int count, double[] distances) {
+		double cosLatitude = Math.cos(Math.toRadians(latitude));
+
+		for(int i = 0; i < count; i++) {
+			double a = haversine(longitude, latitude, cosLatitude, longitudes[i], latitudes[i]);
+
+			distances[i] = 2 * EarthRadiusInMeters * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+		}
+	}
+
+	/**
+	 * Selects the locations within a distance of one location, without computing the distances.
+	 *
+	 * Locations outside the latitude band or the longitude band of the distance are rejected with 
+	 * a subtraction, the others are compared in the haversine domain (no square root or arc tangent 
+	 * needed). The result is exact.
+	 *
+	 * @param longitude - of the origin, in degrees
+	 * @param latitude
+	 * @param longitudes - of the other locations
+	 * @param latitudes
+	 * @param count - number of other locations
+	 * @param maxDistance - in meters
+	 * @param selected - receives the indices of the selected locations, at least count long
+	 * @return the number of selected locations
+	 */
+	public static int selectWithinDistance(double longitude, double latitude, double[] longitudes, double[] latitudes, int count,
+			double maxDistance, int[] selected) {
+		int n = 0;
+
+		if(maxDistance >= Math.PI * EarthRadiusInMeters) {
+			// covers the whole globe
+			for(int i = 0; i < count; i++) {
+				selected[n++] = i;
+			}
+			return n;
+		}
+
+		// the distance is at least the difference in latitude
+		double maxLatitudeDifference = Math.toDegrees(maxDistance / EarthRadiusInMeters);
+
+		double sinHalfMax = Math.sin(maxDistance / (2 * EarthRadiusInMeters));
+		double maxHaversine = sinHalfMax * sinHalfMax;
+
+		double cosLatitude = Math.cos(Math.toRadians(latitude));
+
+		// within the latitude band the haversine is at least cosLatitude * cosBand * sin(dLng/2)^2,
+		// cosBand being the cosine of the band's latitude closest to a pole
+		double cosBand = Math.cos(Math.toRadians(Math.min(90.0, Math.abs(latitude) + maxLatitudeDifference)));
+		double maxSinHalfDLng = cosLatitude * cosBand > 0 ? Math.sqrt(maxHaversine / (cosLatitude * cosBand)) : 1.0;
+
+		// no bound if the band reaches a pole; slightly widened against rounding
+		double maxLongitudeDifference = maxSinHalfDLng < 1.0 ? Math.toDegrees(2 * Math.asin(maxSinHalfDLng)) * (1 + 1e-9) : 180.0;
+
+		for(int i = 0; i < count; i++) {
+			double longitudeDifference = Math.abs(longitudes[i] - longitude);
+			if(longitudeDifference > 180.0) {
+				longitudeDifference = 360.0 - longitudeDifference;
+			}
+
+			if(Math.abs(latitudes[i] - latitude) <= maxLatitudeDifference
+					&& longitudeDifference <= maxLongitudeDifference
+					&& haversine(longitude, latitude, cosLatitude, longitudes[i], latitudes[i]) <= maxHaversine) {
+				selected[n++] = i;
+			}
+		}
+
+		return n;
+	}
+
+	// sin(d/2R)^2 of the distance d between two locations, cosLatitude1 is the cosine of latitude1
+	private static double haversine(double longitude1, double latitude1, double cosLatitude1, double longitude2, double latitude2) {
+		double sinHalfDLat = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+		double sinHalfDLng = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+
+		double a = sinHalfDLat * sinHalfDLat +
+				cosLatitude1 * Math.cos(Math.toRadians(latitude2)) * sinHalfDLng * sinHalfDLng;
+
+		// rounding may leave the range
+		return Math.min(1.0, a);
+	}
 }
@@ -0,0 +1,89 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import util.GameConfiguration;
+import util.Util;
+
+/**
+ * Distance between two geolocations, computed for every candidate of a nearby or opponent lookup,
+ * one at a time (boxed and primitive) and as batch from one origin.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DistanceBenchmark {
+
+	private static final int Points = 1024;
+
+	private Double[] longitudes = new Double[Points];
+	private Double[] latitudes = new Double[Points];
+
+	private double[] primitiveLongitudes = new double[Points];
+	private double[] primitiveLatitudes = new double[Points];
+
+	private double[] distances = new double[Points];
+	private int[] selected = new int[Points];
+
+	private int index = 0;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+
+		for(int i = 0; i < Points; i++) {
+			// around Hamburg, within a few kilometers
+			longitudes[i] = 9.99 + random.nextDouble() * 0.1;
+			latitudes[i] = 53.55 + random.nextDouble() * 0.1;
+
+			primitiveLongitudes[i] = longitudes[i];
+			primitiveLatitudes[i] = latitudes[i];
+		}
+	}
+
+	@Benchmark
+	public Double geoLocToDistInMeters() {
+		int i = index;
+		int j = (i + 1) & (Points - 1);
+		index = j;
+
+		return Util.geoLocToDistInMeters(longitudes[i], latitudes[i], longitudes[j], latitudes[j]);
+	}
+
+	@Benchmark
+	public double distanceInMeters() {
+		int i = index;
+		int j = (i + 1) & (Points - 1);
+		index = j;
+
+		return Util.distanceInMeters(primitiveLongitudes[i], primitiveLatitudes[i], primitiveLongitudes[j], primitiveLatitudes[j]);
+	}
+
+	// all Points distances per invocation
+	@Benchmark
+	public double[] distancesInMeters() {
+		Util.distancesInMeters(9.99, 53.55, primitiveLongitudes, primitiveLatitudes, Points, distances);
+		return distances;
+	}
+
+	// all Points locations per invocation
+	@Benchmark
+	public int selectWithinDistance() {
+		return Util.selectWithinDistance(9.99, 53.55, primitiveLongitudes, primitiveLatitudes, Points, GameConfiguration.MaxDistanceOfUserForNearbyUsers, selected);
+	}
+}
@@ -0,0 +1,113 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import models.Game;
+import models.SocialGraph;
+import models.User;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import util.GameConfiguration;
+
+/**
+ * The steps of Game.findOpponent: the lookup of friends and friends of friends in the
+ * social graph (each friend has 50 friends) and the filtering of the participating
+ * candidates read from the database; about a tenth of the users are nearby.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FindOpponentBenchmark {
+
+	@Param({"10", "200", "5000"})
+	public int friends;
+
+	private User user;
+	private List<User> candidates;
+
+	// filterNearby filters in place, so it is given a fresh copy of the candidates every time
+	private List<User> filtered;
+
+	private SocialGraph graph;
+	private SocialGraph.Filter nearby;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+
+		user = new User("First User", "100000000000001");
+		user.loc = new Double[]{9.99, 53.55};
+
+		candidates = new ArrayList<User>(friends);
+
+		for(int i = 0; i < friends; i++) {
+			User friend = new User("Friend " + i, String.valueOf(100000000000100L + i));
+
+			// 0.001 degrees are roughly 70-110 meters here
+			double offset = random.nextInt(10) == 0 ? 0.0005 : 0.01 + random.nextDouble();
+			friend.loc = new Double[]{user.loc[0] + offset, user.loc[1] + random.nextDouble() * 0.0005};
+
+			candidates.add(friend);
+		}
+
+		filtered = new ArrayList<User>(friends);
+
+		graph = new SocialGraph();
+
+		String[] friendIDs = new String[friends];
+		for(int i = 0; i < friends; i++) {
+			friendIDs[i] = candidates.get(i).facebookID;
+
+			String[] friendsOfFriend = new String[50];
+			for(int j = 0; j < friendsOfFriend.length; j++) {
+				friendsOfFriend[j] = String.valueOf(100000001000000L + random.nextInt(100 * friends));
+			}
+			graph.update(friendIDs[i], friendsOfFriend);
+		}
+		graph.update(user.facebookID, friendIDs);
+
+		nearby = new SocialGraph.Filter() {
+			@Override
+			public boolean accept(String facebookID) {
+				return facebookID.hashCode() % 10 == 0;
+			}
+		};
+	}
+
+	@Benchmark
+	public int friendsOfFriends() {
+		List<String> nearbyFriends = new ArrayList<String>();
+		List<String> nearbyFriendsOfFriends = new ArrayList<String>();
+
+		graph.findWithinTwoHops(user.facebookID, nearby, nearbyFriends, nearbyFriendsOfFriends, GameConfiguration.MaxNumberOfFriendsOfFriendsForOpponents);
+
+		return nearbyFriends.size() + nearbyFriendsOfFriends.size();
+	}
+
+	@Benchmark
+	public List<User> filterNearby() {
+		filtered.clear();
+		for(int i = 0; i < candidates.size(); i++) {
+			filtered.add(candidates.get(i));
+		}
+
+		return Game.filterNearby(user, filtered, GameConfiguration.MaxDistanceOfUserForNearbyUsers);
+	}
+}
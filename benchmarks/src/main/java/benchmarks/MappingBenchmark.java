@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import models.Game;
+import models.User;
+
+import org.jongo.Mapper;
+import org.jongo.bson.BsonDocument;
+import org.jongo.marshall.jackson.JacksonMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mapping of user and game documents between BSON and objects, as done by Jongo for every
+ * database request; users are benchmarked with friend lists of different sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MappingBenchmark {
+
+	@Param({"0", "200", "5000"})
+	public int friends;
+
+	// same configuration as the mapper Jongo uses by default
+	private final Mapper mapper = new JacksonMapper.Builder().build();
+
+	private User user;
+	private Game game;
+
+	private BsonDocument userDocument;
+	private BsonDocument gameDocument;
+
+	@Setup
+	public void setUp() {
+		user = new User("First User", "100000000000001");
+		user.loc = new Double[]{9.99, 53.55};
+		user.lastLogin = System.currentTimeMillis() / 1000;
+		user.participatesInGame = true;
+		user.score = 42.0;
+		user.googleCloudDeviceId = "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx";
+		user.facebookFriendIDs = new String[friends];
+
+		for(int i = 0; i < friends; i++) {
+			user.facebookFriendIDs[i] = String.valueOf(100000000000000L + i);
+		}
+
+		game = new Game(user, new User("Second User", "100000000000002"));
+		game.id = "5370f4b2e4b0c1a3d8e4f001";
+
+		userDocument = mapper.getMarshaller().marshall(user);
+		gameDocument = mapper.getMarshaller().marshall(game);
+	}
+
+	@Benchmark
+	public BsonDocument marshallUser() {
+		return mapper.getMarshaller().marshall(user);
+	}
+
+	@Benchmark
+	public User unmarshallUser() {
+		return mapper.getUnmarshaller().unmarshall(userDocument, User.class);
+	}
+
+	@Benchmark
+	public BsonDocument marshallGame() {
+		return mapper.getMarshaller().marshall(game);
+	}
+
+	@Benchmark
+	public Game unmarshallGame() {
+		return mapper.getUnmarshaller().unmarshall(gameDocument, Game.class);
+	}
+}
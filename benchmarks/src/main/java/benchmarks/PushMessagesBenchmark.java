@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import models.Game;
+import models.PushMessages;
+import models.User;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding the push messages of a game as the JSON strings that are sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PushMessagesBenchmark {
+
+	private User user1;
+	private User user2;
+	private Game game;
+
+	@Setup
+	public void setUp() {
+		user1 = new User("First User", "100000000000001");
+		user1.score = 42.0;
+
+		user2 = new User("Second User", "100000000000002");
+		user2.score = 7.0;
+
+		game = new Game(user1, user2);
+		game.id = "5370f4b2e4b0c1a3d8e4f001";
+	}
+
+	@Benchmark
+	public String gameRequestMessage() {
+		return PushMessages.createGameRequestMessage(game);
+	}
+
+	@Benchmark
+	public String establishedGameMessage() {
+		return PushMessages.createEstablishedGameMessage(game);
+	}
+
+	@Benchmark
+	public String wonGameMessage() {
+		return PushMessages.createWonGameMessage(user1, user2);
+	}
+
+	@Benchmark
+	public String pokeMessage() {
+		return PushMessages.createPokeMessage(user1);
+	}
+}
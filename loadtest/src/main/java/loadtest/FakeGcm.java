@@ -0,0 +1,121 @@
+package loadtest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for GCM's send endpoint (POST /gcm/send), as used by the gcm-server library:
+ * single messages are form encoded (registration_id, data.message), multicast messages are
+ * JSON (registration_ids, data.message).
+ *
+ * Instead of pushing the messages to devices, they are handed to the simulated client
+ * of the device token. Unknown device tokens are answered with the error NotRegistered.
+ *
+ */
+public class FakeGcm implements HttpHandler {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final SimulatedClient[] clients;
+
+	private final AtomicLong messageIDs = new AtomicLong();
+	private final AtomicLong deliveredCount = new AtomicLong();
+
+	private HttpServer server;
+
+	public FakeGcm(SimulatedClient[] clients) {
+		this.clients = clients;
+	}
+
+	public void start(int port, ExecutorService executor) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 1024);
+		server.createContext("/gcm/send", this);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public void stop() {
+		if(server != null) {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * Number of messages handed to simulated clients
+	 * @return
+	 */
+	public long getDeliveredCount() {
+		return deliveredCount.get();
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			String body = FakeGraphApi.read(exchange.getRequestBody());
+			String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+
+			if(contentType != null && contentType.startsWith("application/json")) {
+				JsonNode request = mapper.readTree(body);
+				String message = request.path("data").path("message").asText();
+
+				ObjectNode response = mapper.createObjectNode();
+				ArrayNode results = response.putArray("results");
+				int success = 0;
+
+				for(JsonNode deviceToken : request.path("registration_ids")) {
+					ObjectNode result = results.addObject();
+
+					if(deliver(deviceToken.asText(), message)) {
+						result.put("message_id", "0:" + messageIDs.incrementAndGet());
+						success++;
+					} else {
+						result.put("error", "NotRegistered");
+					}
+				}
+
+				response.put("multicast_id", messageIDs.incrementAndGet());
+				response.put("success", success);
+				response.put("failure", request.path("registration_ids").size() - success);
+				response.put("canonical_ids", 0);
+
+				FakeGraphApi.respond(exchange, 200, response);
+
+			} else {
+				Map<String, String> parameters = FakeGraphApi.parse(body);
+
+				if(deliver(parameters.get("registration_id"), parameters.get("data.message"))) {
+					FakeGraphApi.respond(exchange, 200, "id=0:" + messageIDs.incrementAndGet());
+				} else {
+					FakeGraphApi.respond(exchange, 200, "Error=NotRegistered");
+				}
+			}
+
+		} catch (RuntimeException e) {
+			FakeGraphApi.respond(exchange, 500, String.valueOf(e));
+		}
+	}
+
+	private boolean deliver(String deviceToken, String message) throws IOException {
+		int index = SimulatedClient.indexOf(deviceToken);
+
+		if(index < 0 || index >= clients.length || message == null) {
+			return false;
+		}
+
+		deliveredCount.incrementAndGet();
+		clients[index].received(mapper.readTree(message));
+
+		return true;
+	}
+}
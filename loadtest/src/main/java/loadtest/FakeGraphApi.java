@@ -0,0 +1,206 @@
+package loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the parts of Facebook's Graph API used by the server:
+ * GET /me, GET /me/friends and batch requests of both (POST / with the parameter batch).
+ *
+ * The access token "user-n" is the token of simulated client n, its friends are the
+ * other clients of its group. A fixed latency can be added to every response to
+ * simulate a slow Facebook.
+ *
+ */
+public class FakeGraphApi implements HttpHandler {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final int groupSize;
+	private final int clients;
+	private final long latencyInMillis;
+
+	private HttpServer server;
+
+	/**
+	 * @param clients - number of simulated clients
+	 * @param groupSize - number of clients per group of friends
+	 * @param latencyInMillis - added to every response
+	 */
+	public FakeGraphApi(int clients, int groupSize, long latencyInMillis) {
+		this.clients = clients;
+		this.groupSize = groupSize;
+		this.latencyInMillis = latencyInMillis;
+	}
+
+	public void start(int port, ExecutorService executor) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 1024);
+		server.createContext("/", this);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public void stop() {
+		if(server != null) {
+			server.stop(0);
+		}
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			if(latencyInMillis > 0) {
+				Thread.sleep(latencyInMillis);
+			}
+
+			Map<String, String> parameters = parse(exchange.getRequestURI().getRawQuery());
+			if(exchange.getRequestMethod().equals("POST")) {
+				parameters.putAll(parse(read(exchange.getRequestBody())));
+			}
+
+			String path = exchange.getRequestURI().getPath();
+			int user = SimulatedClient.indexOf(parameters.get("access_token"));
+
+			if(user < 0 || user >= clients) {
+				respond(exchange, 400, error("Invalid OAuth access token."));
+
+			} else if(parameters.containsKey("batch")) {
+				respond(exchange, 200, batch(user, mapper.readTree(parameters.get("batch"))));
+
+			} else {
+				JsonNode response = answer(user, path);
+				respond(exchange, response != null ? 200 : 404, response != null ? response : error("Unknown path " + path));
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			respond(exchange, 500, error("Interrupted"));
+		} catch (RuntimeException e) {
+			respond(exchange, 500, error(String.valueOf(e)));
+		}
+	}
+
+	// the response of one (relative) path, null if unknown
+	private JsonNode answer(int user, String path) {
+		int query = path.indexOf('?');
+		if(query >= 0) {
+			path = path.substring(0, query);
+		}
+
+		path = path.startsWith("/") ? path.substring(1) : path;
+
+		if(path.equals("me")) {
+			return profile(user);
+
+		} else if(path.equals("me/friends")) {
+			ObjectNode friends = mapper.createObjectNode();
+			ArrayNode data = friends.putArray("data");
+
+			int first = user - user % groupSize;
+			for(int friend = first; friend < Math.min(first + groupSize, clients); friend++) {
+				if(friend != user) {
+					data.add(profile(friend));
+				}
+			}
+
+			return friends;
+		}
+
+		return null;
+	}
+
+	// see https://developers.facebook.com/docs/graph-api/making-multiple-requests
+	private ArrayNode batch(int user, JsonNode requests) {
+		ArrayNode responses = mapper.createArrayNode();
+
+		for(JsonNode request : requests) {
+			JsonNode body = answer(user, request.path("relative_url").asText());
+
+			ObjectNode response = responses.addObject();
+			response.put("code", body != null ? 200 : 404);
+			response.putArray("headers");
+			response.put("body", (body != null ? body : error("Unknown path")).toString());
+		}
+
+		return responses;
+	}
+
+	private static ObjectNode profile(int user) {
+		ObjectNode profile = mapper.createObjectNode();
+		profile.put("id", SimulatedClient.facebookID(user));
+		profile.put("name", "Load Test User " + user);
+		return profile;
+	}
+
+	private static ObjectNode error(String message) {
+		ObjectNode error = mapper.createObjectNode();
+		ObjectNode details = error.putObject("error");
+		details.put("message", message);
+		details.put("type", "OAuthException");
+		details.put("code", 190);
+		return error;
+	}
+
+	static Map<String, String> parse(String encoded) throws UnsupportedEncodingException {
+		Map<String, String> parameters = new HashMap<String, String>();
+
+		if(encoded == null || encoded.isEmpty()) {
+			return parameters;
+		}
+
+		for(String pair : encoded.split("&")) {
+			int equals = pair.indexOf('=');
+
+			if(equals > 0) {
+				parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+			}
+		}
+
+		return parameters;
+	}
+
+	static String read(InputStream in) throws IOException {
+		try {
+			byte[] buffer = new byte[4096];
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+			for(int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+				bytes.write(buffer, 0, n);
+			}
+
+			return bytes.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	static void respond(HttpExchange exchange, int status, Object body) throws IOException {
+		byte[] bytes = body.toString().getBytes("UTF-8");
+
+		exchange.getResponseHeaders().set("Content-Type", body instanceof JsonNode ? "application/json; charset=UTF-8" : "text/plain; charset=UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+}
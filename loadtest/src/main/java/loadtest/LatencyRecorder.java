@@ -0,0 +1,134 @@
+package loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram of one route with constant memory, however many requests are recorded.
+ *
+ * Latencies are counted in log-linear buckets of microseconds (32 buckets per power of two),
+ * so percentiles are accurate to about 3%. Thread-safe and lock-free.
+ *
+ */
+public class LatencyRecorder {
+
+	private static final int SubBuckets = 32;
+	private static final int SubBucketBits = 5;
+	private static final int Linear = 2 * SubBuckets;
+	// up to 2^36 microseconds
+	private static final int Buckets = Linear + (36 - SubBucketBits - 1) * SubBuckets;
+
+	private final String route;
+
+	private final AtomicLongArray counts = new AtomicLongArray(Buckets);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong errorCount = new AtomicLong();
+	private final AtomicLong maxInMicros = new AtomicLong();
+
+	public LatencyRecorder(String route) {
+		this.route = route;
+	}
+
+	public String getRoute() {
+		return route;
+	}
+
+	/**
+	 * @param latencyInNanos
+	 * @param status - HTTP status, or -1 if the request failed without response
+	 */
+	public void record(long latencyInNanos, int status) {
+		long micros = Math.max(0, latencyInNanos / 1000);
+
+		counts.incrementAndGet(index(micros));
+		count.incrementAndGet();
+
+		if(status < 0 || status >= 500) {
+			errorCount.incrementAndGet();
+		} else if(status >= 400) {
+			rejectedCount.incrementAndGet();
+		}
+
+		long max = maxInMicros.get();
+		while(micros > max && !maxInMicros.compareAndSet(max, micros)) {
+			max = maxInMicros.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Requests answered with 4xx, e.g. no opponent found
+	 * @return
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * Requests answered with 5xx or without response
+	 * @return
+	 */
+	public long getErrorCount() {
+		return errorCount.get();
+	}
+
+	public double getMaxInMillis() {
+		return maxInMicros.get() / 1000.0;
+	}
+
+	/**
+	 * @param percentile - e.g. 99.9
+	 * @return the latency below which the percentile of requests are, 0 without requests
+	 */
+	public double getPercentileInMillis(double percentile) {
+		long total = 0;
+		for(int i = 0; i < Buckets; i++) {
+			total += counts.get(i);
+		}
+
+		if(total == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+
+		for(int i = 0; i < Buckets; i++) {
+			seen += counts.get(i);
+
+			if(seen >= rank) {
+				return Math.min(upperBound(i), maxInMicros.get()) / 1000.0;
+			}
+		}
+
+		return getMaxInMillis();
+	}
+
+	private static int index(long micros) {
+		if(micros < Linear) {
+			return (int) micros;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int shift = exponent - SubBucketBits;
+		int sub = (int) (micros >> shift) & (SubBuckets - 1);
+
+		return Math.min(Buckets - 1, Linear + (exponent - SubBucketBits - 1) * SubBuckets + sub);
+	}
+
+	private static long upperBound(int index) {
+		if(index < Linear) {
+			return index;
+		}
+
+		int exponent = (index - Linear) / SubBuckets + SubBucketBits + 1;
+		int sub = (index - Linear) % SubBuckets;
+		int shift = exponent - SubBucketBits;
+
+		return ((long) (SubBuckets + sub + 1) << shift) - 1;
+	}
+}
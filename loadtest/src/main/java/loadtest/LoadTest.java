@@ -0,0 +1,382 @@
+package loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodProcess;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+
+/**
+ * Load test of the web service: simulated clients log in, move, look up nearby users and play
+ * games against a running server, which talks to local stand-ins of Facebook (FakeGraphApi)
+ * and GCM (FakeGcm) instead of the real services. The latencies of every route are reported
+ * at the end (count, throughput, p50, p99, p99.9, max).
+ *
+ * The load is open: every client sends its steps at a fixed mean rate (1 / think-time), whether
+ * or not the server keeps up, and latencies are measured from the time a request was due, not
+ * from the time it was sent. A slow response thus counts for all the requests it held up
+ * (no coordinated omission).
+ *
+ * Usage (see loadtest/build.sbt):
+ * <pre>
+ * sbt "loadtest/run --clients 1000 --duration 60 --embedded-mongo 27018"
+ * </pre>
+ * and, once the stand-ins are up, the server with
+ * <pre>
+ * sbt -Dfacebook.graphEndpoint=http://localhost:9100 -Dgcm.sendEndpoint=http://localhost:9200/gcm/send \
+ *     -Dplayjongo.uri=mongodb://127.0.0.1:27018/loadtest start
+ * </pre>
+ *
+ */
+public class LoadTest {
+
+	private static final Map<String, String> defaults = new TreeMap<String, String>();
+
+	static {
+		defaults.put("target", "http://localhost:9000");
+		defaults.put("clients", "1000");
+		defaults.put("group-size", "10");
+		defaults.put("threads", "200");
+		defaults.put("duration", "60");
+		defaults.put("warmup", "10");
+		defaults.put("think-time", "1000");
+		defaults.put("game-probability", "0.05");
+		defaults.put("graph-port", "9100");
+		defaults.put("graph-latency", "0");
+		defaults.put("gcm-port", "9200");
+		defaults.put("embedded-mongo", "0");
+		defaults.put("wait", "300");
+	}
+
+	private final String target;
+	private final long thinkTimeInMillis;
+	private final double gameRequestProbability;
+
+	private final ScheduledExecutorService executor;
+
+	private volatile boolean running = true;
+
+	// route -> latencies, replaced after the warm-up
+	private volatile ConcurrentMap<String, LatencyRecorder> recorders = new ConcurrentHashMap<String, LatencyRecorder>();
+
+	private final AtomicLong gameRequestCount = new AtomicLong();
+	private final AtomicLong gameFinishedCount = new AtomicLong();
+	private final AtomicLong gameAbortedCount = new AtomicLong();
+
+	public LoadTest(String target, int threads, long thinkTimeInMillis, double gameRequestProbability) {
+		this.target = target;
+		this.thinkTimeInMillis = thinkTimeInMillis;
+		this.gameRequestProbability = gameRequestProbability;
+
+		executor = Executors.newScheduledThreadPool(threads);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parse(args);
+		if(options == null) {
+			System.out.println("Options (with defaults): " + defaults);
+			System.out.println("--embedded-mongo <port> starts a MongoDB for the server, 0 to use an existing one");
+			return;
+		}
+
+		int clientCount = Integer.parseInt(options.get("clients"));
+		int groupSize = Integer.parseInt(options.get("group-size"));
+		int threads = Integer.parseInt(options.get("threads"));
+		int mongoPort = Integer.parseInt(options.get("embedded-mongo"));
+
+		// keep a connection per client thread alive
+		System.setProperty("http.maxConnections", String.valueOf(threads));
+
+		MongodExecutable mongod = null;
+		MongodProcess mongodProcess = null;
+
+		if(mongoPort > 0) {
+			mongod = MongodStarter.getDefaultInstance().prepare(new MongodConfigBuilder()
+					// the newest version the server's mongo-java-driver 2.12 supports
+					.version(Version.Main.V2_6)
+					.net(new Net(mongoPort, Network.localhostIsIPv6()))
+					.build());
+			mongodProcess = mongod.start();
+
+			System.out.println("MongoDB started, run the server with -Dplayjongo.uri=mongodb://127.0.0.1:" + mongoPort + "/loadtest");
+		}
+
+		LoadTest test = new LoadTest(options.get("target"), threads,
+				Long.parseLong(options.get("think-time")), Double.parseDouble(options.get("game-probability")));
+
+		SimulatedClient[] clients = new SimulatedClient[clientCount];
+		Random random = new Random(0);
+
+		for(int group = 0; group * groupSize < clientCount; group++) {
+			// groups are spread over an area of about 100 x 100 km
+			double longitude = 13.0 + random.nextDouble();
+			double latitude = 52.0 + random.nextDouble();
+
+			for(int i = group * groupSize; i < Math.min((group + 1) * groupSize, clientCount); i++) {
+				clients[i] = new SimulatedClient(test, i, longitude, latitude);
+			}
+		}
+
+		ExecutorService serverThreads = Executors.newCachedThreadPool();
+
+		FakeGraphApi graph = new FakeGraphApi(clientCount, groupSize, Long.parseLong(options.get("graph-latency")));
+		graph.start(Integer.parseInt(options.get("graph-port")), serverThreads);
+
+		FakeGcm gcm = new FakeGcm(clients);
+		gcm.start(Integer.parseInt(options.get("gcm-port")), serverThreads);
+
+		System.out.println("Facebook and GCM stand-ins started, run the server with -Dfacebook.graphEndpoint=http://localhost:"
+				+ options.get("graph-port") + " -Dgcm.sendEndpoint=http://localhost:" + options.get("gcm-port") + "/gcm/send");
+
+		try {
+			if(!test.awaitServer(Long.parseLong(options.get("wait")))) {
+				System.out.println("Server " + options.get("target") + " not reachable, giving up");
+				return;
+			}
+
+			long warmup = Long.parseLong(options.get("warmup"));
+			long duration = Long.parseLong(options.get("duration"));
+
+			System.out.println("Starting " + clientCount + " clients, warm-up " + warmup + " s, measuring " + duration + " s");
+
+			for(SimulatedClient client : clients) {
+				client.start();
+			}
+
+			Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+			test.reset();
+
+			Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+			test.stop();
+
+			test.report(System.out, duration);
+			System.out.println("Push messages delivered: " + gcm.getDeliveredCount());
+
+		} finally {
+			graph.stop();
+			gcm.stop();
+			serverThreads.shutdownNow();
+
+			if(mongodProcess != null) {
+				mongodProcess.stop();
+				mongod.stop();
+			}
+		}
+	}
+
+	// --name value pairs, null if help was requested or an option is unknown
+	private static Map<String, String> parse(String[] args) {
+		Map<String, String> options = new HashMap<String, String>(defaults);
+
+		for(int i = 0; i < args.length; i += 2) {
+			String name = args[i].startsWith("--") ? args[i].substring(2) : args[i];
+
+			if(!defaults.containsKey(name) || i + 1 >= args.length) {
+				return null;
+			}
+
+			options.put(name, args[i + 1]);
+		}
+
+		return options;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Runs a task of a client when it is due, at once if that time has passed, unless the test is over
+	 * @param task
+	 * @param dueInNanos - System.nanoTime() based
+	 */
+	public void scheduleAt(Runnable task, long dueInNanos) {
+		if(!running) {
+			return;
+		}
+
+		try {
+			executor.schedule(task, Math.max(0, dueInNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// stopped in the meantime
+		}
+	}
+
+	public double gameRequestProbability() {
+		return gameRequestProbability;
+	}
+
+	/**
+	 * Exponentially distributed time between the due times of two steps of a client
+	 * @param random
+	 * @return
+	 */
+	public long nextThinkTimeInMillis(Random random) {
+		return (long) (-Math.log(1.0 - random.nextDouble()) * thinkTimeInMillis);
+	}
+
+	/**
+	 * Time a player takes to react to a game message
+	 * @param random
+	 * @return
+	 */
+	public long nextReactionTimeInMillis(Random random) {
+		return 200 + random.nextInt(1800);
+	}
+
+	public void gameRequested() {
+		gameRequestCount.incrementAndGet();
+	}
+
+	public void gameFinished() {
+		gameFinishedCount.incrementAndGet();
+	}
+
+	public void gameAborted() {
+		gameAbortedCount.incrementAndGet();
+	}
+
+	/**
+	 * Sends a request to the server and records its latency, including the time it waited to be sent
+	 * @param route - name of the route in the report
+	 * @param method
+	 * @param path
+	 * @param dueInNanos - System.nanoTime() when the request should have been sent
+	 * @return the HTTP status, -1 if there was no response
+	 */
+	public int send(String route, String method, String path, long dueInNanos) {
+		int status = -1;
+
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) new URL(target + path).openConnection();
+			connection.setRequestMethod(method);
+			connection.setConnectTimeout(10000);
+			connection.setReadTimeout(30000);
+
+			if(method.equals("POST")) {
+				connection.setDoOutput(true);
+				connection.setFixedLengthStreamingMode(0);
+				connection.getOutputStream().close();
+			}
+
+			status = connection.getResponseCode();
+
+			// read the response completely, so that the connection can be reused
+			InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if(body != null) {
+				byte[] buffer = new byte[4096];
+				while(body.read(buffer) >= 0) {
+				}
+				body.close();
+			}
+
+		} catch (IOException e) {
+			if(connection != null) {
+				connection.disconnect();
+			}
+		}
+
+		recorder(route).record(System.nanoTime() - dueInNanos, status);
+
+		return status;
+	}
+
+	private LatencyRecorder recorder(String route) {
+		ConcurrentMap<String, LatencyRecorder> current = recorders;
+		LatencyRecorder recorder = current.get(route);
+
+		if(recorder == null) {
+			LatencyRecorder newRecorder = new LatencyRecorder(route);
+
+			recorder = current.putIfAbsent(route, newRecorder);
+			if(recorder == null) {
+				recorder = newRecorder;
+			}
+		}
+
+		return recorder;
+	}
+
+	// polls the index page until the server answers
+	private boolean awaitServer(long timeoutInSeconds) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeoutInSeconds);
+
+		System.out.println("Waiting for the server at " + target);
+
+		while(System.currentTimeMillis() < deadline) {
+			try {
+				HttpURLConnection connection = (HttpURLConnection) new URL(target + "/").openConnection();
+				connection.setConnectTimeout(1000);
+
+				if(connection.getResponseCode() == 200) {
+					connection.getInputStream().close();
+					return true;
+				}
+			} catch (IOException e) {
+				// not started yet
+			}
+
+			Thread.sleep(1000);
+		}
+
+		return false;
+	}
+
+	// discards the latencies of the warm-up
+	private void reset() {
+		recorders = new ConcurrentHashMap<String, LatencyRecorder>();
+		gameRequestCount.set(0);
+		gameFinishedCount.set(0);
+		gameAbortedCount.set(0);
+	}
+
+	private void stop() throws InterruptedException {
+		running = false;
+
+		executor.shutdownNow();
+		executor.awaitTermination(30, TimeUnit.SECONDS);
+	}
+
+	private void report(PrintStream out, long durationInSeconds) {
+		out.println(String.format("%-20s %9s %9s %7s %7s %9s %9s %9s %9s",
+				"route", "count", "req/s", "4xx", "errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+
+		for(LatencyRecorder recorder : new TreeMap<String, LatencyRecorder>(recorders).values()) {
+			out.println(String.format("%-20s %9d %9.1f %7d %7d %9.2f %9.2f %9.2f %9.2f",
+					recorder.getRoute(),
+					recorder.getCount(),
+					recorder.getCount() / (double) durationInSeconds,
+					recorder.getRejectedCount(),
+					recorder.getErrorCount(),
+					recorder.getPercentileInMillis(50),
+					recorder.getPercentileInMillis(99),
+					recorder.getPercentileInMillis(99.9),
+					recorder.getMaxInMillis()));
+		}
+
+		// every message is received by both players
+		out.println("Games requested: " + gameRequestCount.get() / 2 + ", finished: " + gameFinishedCount.get() / 2
+				+ ", aborted: " + gameAbortedCount.get() / 2);
+	}
+}
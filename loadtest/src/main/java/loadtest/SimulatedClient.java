@@ -0,0 +1,181 @@
+package loadtest;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * One simulated Android client.
+ *
+ * Logs in once and then, in random intervals, updates its location, looks up nearby users
+ * or requests a game. The steps are due at fixed times, independent of the server's response
+ * times: a client that is behind sends its next step as soon as the previous one is answered. Game messages pushed by the server (through FakeGcm) are answered
+ * like a player would: a request is accepted and an established game is played with an
+ * interaction, so complete game flows are generated.
+ *
+ * Client n uses the access token "user-n" and the device token "device-n", FakeGraphApi
+ * answers the token with the profile of facebookID(n).
+ *
+ */
+public class SimulatedClient {
+
+	private static final long FirstFacebookID = 100000000000L;
+
+	// the clients of a group are friends and close to each other
+	private static final double GroupRadiusInDegrees = 0.002;
+	private static final double StepInDegrees = 0.0002;
+
+	private final LoadTest test;
+	private final int index;
+	private final Random random;
+
+	private double longitude;
+	private double latitude;
+
+	private volatile boolean loggedIn = false;
+
+	// System.nanoTime() when the next step is due
+	private long nextStepInNanos;
+
+	public SimulatedClient(LoadTest test, int index, double groupLongitude, double groupLatitude) {
+		this.test = test;
+		this.index = index;
+		this.random = new Random(index);
+
+		longitude = groupLongitude + (random.nextDouble() - 0.5) * GroupRadiusInDegrees;
+		latitude = groupLatitude + (random.nextDouble() - 0.5) * GroupRadiusInDegrees;
+	}
+
+	public static String facebookID(int index) {
+		return String.valueOf(FirstFacebookID + index);
+	}
+
+	public static String accessToken(int index) {
+		return "user-" + index;
+	}
+
+	public static String deviceToken(int index) {
+		return "device-" + index;
+	}
+
+	/**
+	 * @param token - access or device token
+	 * @return the client index, -1 if the token is not one of a simulated client
+	 */
+	public static int indexOf(String token) {
+		int dash = token == null ? -1 : token.lastIndexOf('-');
+
+		try {
+			return dash < 0 ? -1 : Integer.parseInt(token.substring(dash + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Schedules the first step after a random delay, so that the clients do not start at once
+	 */
+	public void start() {
+		nextStepInNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(test.nextThinkTimeInMillis(random) + random.nextInt(1000));
+		scheduleNextStep();
+	}
+
+	private void scheduleNextStep() {
+		test.scheduleAt(new Runnable() {
+			@Override
+			public void run() {
+				step();
+			}
+		}, nextStepInNanos);
+	}
+
+	private void step() {
+		if(!test.isRunning()) {
+			return;
+		}
+
+		long due = nextStepInNanos;
+
+		try {
+			if(!loggedIn) {
+				login(due);
+			} else {
+				double action = random.nextDouble();
+
+				int status;
+
+				if(action < test.gameRequestProbability()) {
+					status = test.send("requestNewGame", "POST", "/games/" + facebookID(index) + "/requestNew", due);
+				} else if(action < 0.4) {
+					status = test.send("getNearbyUsers", "GET", "/users/" + facebookID(index) + "/getNearbyUsers", due);
+				} else {
+					status = move(due);
+				}
+
+				// the session expired on the server
+				if(status == 401) {
+					loggedIn = false;
+				}
+			}
+		} finally {
+			// from the due time of this step, not from its response
+			nextStepInNanos = due + TimeUnit.MILLISECONDS.toNanos(test.nextThinkTimeInMillis(random));
+			scheduleNextStep();
+		}
+	}
+
+	private void login(long dueInNanos) {
+		int status = test.send("loginUser", "POST", "/users/" + accessToken(index) + "/" + deviceToken(index) + "/"
+				+ longitude + "/" + latitude + "/login", dueInNanos);
+
+		loggedIn = status == 200;
+	}
+
+	private int move(long dueInNanos) {
+		// steps of a client never run concurrently
+		longitude += (random.nextDouble() - 0.5) * StepInDegrees;
+		latitude += (random.nextDouble() - 0.5) * StepInDegrees;
+
+		return test.send("updateUserLocation", "POST", "/positions/" + facebookID(index) + "/" + longitude + "/" + latitude + "/update", dueInNanos);
+	}
+
+	/**
+	 * Handles a message pushed by the server, called by FakeGcm
+	 * @param message - the JSON message
+	 */
+	public void received(JsonNode message) {
+		if(!"game".equals(message.path("type").asText())) {
+			return;
+		}
+
+		String subtype = message.path("subtype").asText();
+		final String gameID = message.path("gameID").asText();
+
+		if(subtype.equals("request")) {
+			test.gameRequested();
+			later("acceptGame", "/games/" + gameID + "/" + facebookID(index) + "/accept");
+
+		} else if(subtype.equals("established")) {
+			later("interactionInGame", "/games/" + gameID + "/" + facebookID(index) + "/interaction");
+
+		} else if(subtype.equals("won") || subtype.equals("lost") || subtype.equals("draw")) {
+			test.gameFinished();
+
+		} else if(subtype.equals("aborted")) {
+			test.gameAborted();
+		}
+	}
+
+	// answers a message after the reaction time of a player
+	private void later(final String route, final String path) {
+		final long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(test.nextReactionTimeInMillis(random));
+
+		test.scheduleAt(new Runnable() {
+			@Override
+			public void run() {
+				test.send(route, "POST", path, due);
+			}
+		}, due);
+	}
+}
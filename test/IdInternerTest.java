@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.junit.*;
+
+import util.IdInterner;
+
+import static org.fest.assertions.Assertions.*;
+
+/**
+ * Checks the int IDs assigned to string IDs, also by concurrent threads.
+ */
+public class IdInternerTest {
+
+    private IdInterner interner;
+
+    @Before
+    public void setUp() {
+        interner = new IdInterner();
+    }
+
+    @Test
+    public void assignsDenseIDs() {
+        assertThat(interner.intern("a")).isEqualTo(0);
+        assertThat(interner.intern("b")).isEqualTo(1);
+        assertThat(interner.intern("a")).isEqualTo(0);
+        assertThat(interner.intern("c")).isEqualTo(2);
+
+        assertThat(interner.size()).isEqualTo(3);
+        assertThat(interner.lookup("b")).isEqualTo(1);
+        assertThat(interner.name(2)).isEqualTo("c");
+    }
+
+    @Test
+    public void lookupDoesNotAssign() {
+        assertThat(interner.lookup("a")).isEqualTo(-1);
+        assertThat(interner.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void growsBeyondTheInitialCapacity() {
+        for(int i = 0; i < 5000; i++) {
+            assertThat(interner.intern("id" + i)).isEqualTo(i);
+        }
+
+        assertThat(interner.size()).isEqualTo(5000);
+
+        for(int i = 0; i < 5000; i++) {
+            assertThat(interner.lookup("id" + i)).isEqualTo(i);
+            assertThat(interner.name(i)).isEqualTo("id" + i);
+        }
+    }
+
+    @Test
+    public void concurrentInternsAgree() throws InterruptedException {
+        final int count = 2000;
+        final AtomicReferenceArray<int[]> results = new AtomicReferenceArray<int[]>(4);
+
+        Thread[] threads = new Thread[results.length()];
+        for(int t = 0; t < threads.length; t++) {
+            final int thread = t;
+
+            threads[t] = new Thread() {
+                public void run() {
+                    int[] ids = new int[count];
+                    for(int i = 0; i < count; i++) {
+                        ids[i] = interner.intern("id" + i);
+                    }
+                    results.set(thread, ids);
+                }
+            };
+            threads[t].start();
+        }
+
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(interner.size()).isEqualTo(count);
+
+        for(int i = 0; i < count; i++) {
+            int id = results.get(0)[i];
+
+            assertThat(interner.name(id)).isEqualTo("id" + i);
+            for(int t = 1; t < threads.length; t++) {
+                assertThat(results.get(t)[i]).isEqualTo(id);
+            }
+        }
+    }
+}
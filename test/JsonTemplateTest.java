@@ -0,0 +1,107 @@
+import java.io.IOException;
+
+import org.junit.*;
+
+import util.JsonTemplate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import static org.fest.assertions.Assertions.*;
+
+/**
+ * Checks the messages of JsonTemplate, also by parsing them with Jackson.
+ */
+public class JsonTemplateTest {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final JsonTemplate template = new JsonTemplate(new String[] {"type", "game", "subtype", "won"}, "gameID", "score");
+
+    @Test
+    public void constantAndVariableMembers() {
+        assertThat(template.start().string("g1").number(42.5).end())
+            .isEqualTo("{\"type\":\"game\",\"subtype\":\"won\",\"gameID\":\"g1\",\"score\":42.5}");
+
+        assertThat(new JsonTemplate(new String[0], "count").start().number(7L).end()).isEqualTo("{\"count\":7}");
+        assertThat(new JsonTemplate(new String[] {"type", "server"}).start().end()).isEqualTo("{\"type\":\"server\"}");
+    }
+
+    @Test
+    public void escapesQuotesAndBackslashes() throws IOException {
+        String value = "say \"hi\" \\ to C:\\temp\\";
+        String json = template.start().string(value).number(1.0).end();
+
+        assertThat(json).contains("\"say \\\"hi\\\" \\\\ to C:\\\\temp\\\\\"");
+        assertThat(parse(json).get("gameID").asText()).isEqualTo(value);
+    }
+
+    @Test
+    public void escapesControlCharacters() throws IOException {
+        String value = "a\nb\rc\td\u0000e\u001ff\u007f\u00e4";
+        String json = template.start().string(value).number(1.0).end();
+
+        assertThat(json).contains("\"a\\nb\\rc\\td\\u0000e\\u001ff\u007f\u00e4\"");
+        assertThat(parse(json).get("gameID").asText()).isEqualTo(value);
+    }
+
+    @Test
+    public void escapesConstantMembers() throws IOException {
+        JsonTemplate quoted = new JsonTemplate(new String[] {"na\"me", "va\\lue"}, "sl\not");
+        JsonNode message = parse(quoted.start().string("x").end());
+
+        assertThat(message.get("na\"me").asText()).isEqualTo("va\\lue");
+        assertThat(message.get("sl\not").asText()).isEqualTo("x");
+    }
+
+    @Test
+    public void nullStringsAndNumbers() throws IOException {
+        String json = template.start().string(null).number((Double) null).end();
+
+        assertThat(json).isEqualTo("{\"type\":\"game\",\"subtype\":\"won\",\"gameID\":null,\"score\":null}");
+        assertThat(parse(json).get("score").isNull()).isTrue();
+    }
+
+    @Test
+    public void nonFiniteNumbersAreNull() throws IOException {
+        // Jackson would write NaN and Infinity, which are not valid JSON
+        assertThat(parse(template.start().string("g").number(Double.NaN).end()).get("score").isNull()).isTrue();
+        assertThat(parse(template.start().string("g").number(Double.POSITIVE_INFINITY).end()).get("score").isNull()).isTrue();
+        assertThat(parse(template.start().string("g").number(Double.NEGATIVE_INFINITY).end()).get("score").isNull()).isTrue();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void endWithMissingSlot() {
+        template.start().string("g1").end();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void moreValuesThanSlots() {
+        template.start().string("g1").number(1.0).string("too many");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void endTwice() {
+        JsonTemplate.Writer writer = template.start().string("g1").number(1.0);
+        writer.end();
+        writer.end();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constantMembersInPairs() {
+        new JsonTemplate(new String[] {"type"}, "gameID");
+    }
+
+    @Test
+    public void writerIsReusedAfterEnd() {
+        String first = template.start().string("g1").number(1.0).end();
+        String second = template.start().string("g2").number(2.0).end();
+
+        assertThat(first).isEqualTo("{\"type\":\"game\",\"subtype\":\"won\",\"gameID\":\"g1\",\"score\":1.0}");
+        assertThat(second).isEqualTo("{\"type\":\"game\",\"subtype\":\"won\",\"gameID\":\"g2\",\"score\":2.0}");
+    }
+
+    private static JsonNode parse(String json) throws IOException {
+        return mapper.readTree(json);
+    }
+}
@@ -0,0 +1,152 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.*;
+
+import util.OrderStatisticTree;
+
+import static org.fest.assertions.Assertions.*;
+
+/**
+ * Checks the treap of the leaderboard against a sorted list.
+ */
+public class OrderStatisticTreeTest {
+
+    private static class Score {
+        final String id;
+        final double score;
+
+        Score(String id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        public String toString() {
+            return id + ":" + score;
+        }
+    }
+
+    // highest score first, equal scores by ID, as in the leaderboard
+    private static final Comparator<Score> byScore = new Comparator<Score>() {
+        public int compare(Score s1, Score s2) {
+            int cmp = Double.compare(s2.score, s1.score);
+            return cmp != 0 ? cmp : s1.id.compareTo(s2.id);
+        }
+    };
+
+    private OrderStatisticTree<Score> tree;
+    private List<Score> sorted;
+
+    @Before
+    public void setUp() {
+        tree = new OrderStatisticTree<Score>(byScore);
+        sorted = new ArrayList<Score>();
+    }
+
+    @Test
+    public void rankAndTopOfEqualScores() {
+        add(new Score("c", 5));
+        add(new Score("a", 5));
+        add(new Score("b", 7));
+        add(new Score("d", 5));
+
+        assertThat(ids(tree.head(10))).isEqualTo(ids(sorted));
+        assertThat(ids(tree.head(2))).isEqualTo(Arrays.asList("b:7.0", "a:5.0"));
+        assertThat(tree.indexOf(new Score("a", 5))).isEqualTo(1);
+        assertThat(tree.indexOf(new Score("d", 5))).isEqualTo(3);
+        assertThat(tree.indexOf(new Score("a", 7))).isEqualTo(-1);
+    }
+
+    @Test
+    public void addRejectsEqualElement() {
+        assertThat(tree.add(new Score("a", 1))).isTrue();
+        assertThat(tree.add(new Score("a", 1))).isFalse();
+        assertThat(tree.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void removeOfMissingElement() {
+        tree.add(new Score("a", 1));
+
+        assertThat(tree.remove(new Score("a", 2))).isFalse();
+        assertThat(tree.remove(new Score("a", 1))).isTrue();
+        assertThat(tree.size()).isEqualTo(0);
+        assertThat(tree.head(5)).isEmpty();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getBeyondSize() {
+        tree.add(new Score("a", 1));
+        tree.get(1);
+    }
+
+    @Test
+    public void randomUpdatesMatchSortedList() {
+        Random random = new Random(42);
+        List<Score> current = new ArrayList<Score>();
+
+        for(int i = 0; i < 3000; i++) {
+            int op = random.nextInt(3);
+
+            if(op == 0 || current.isEmpty()) {
+                // few distinct scores, so that many users share a score
+                Score score = new Score("u" + i, random.nextInt(20));
+                add(score);
+                current.add(score);
+
+            } else if(op == 1) {
+                Score removed = current.remove(random.nextInt(current.size()));
+                assertThat(tree.remove(removed)).isTrue();
+                sorted.remove(removed);
+
+            } else {
+                // a score change: the old entry is replaced by a new one, see Leaderboard
+                int index = random.nextInt(current.size());
+                Score old = current.get(index);
+                Score updated = new Score(old.id, old.score + random.nextInt(7) - 3);
+
+                assertThat(tree.remove(old)).isTrue();
+                sorted.remove(old);
+                add(updated);
+                current.set(index, updated);
+            }
+
+            if(i % 100 == 0) {
+                verify(random);
+            }
+        }
+
+        verify(random);
+    }
+
+    private void add(Score score) {
+        assertThat(tree.add(score)).isTrue();
+
+        sorted.add(score);
+        Collections.sort(sorted, byScore);
+    }
+
+    private void verify(Random random) {
+        assertThat(tree.size()).isEqualTo(sorted.size());
+
+        for(int i = 0; i < sorted.size(); i++) {
+            assertThat(tree.indexOf(sorted.get(i))).isEqualTo(i);
+            assertThat(tree.get(i)).isSameAs(sorted.get(i));
+        }
+
+        int k = random.nextInt(sorted.size() + 2);
+        assertThat(ids(tree.head(k))).isEqualTo(ids(sorted.subList(0, Math.min(k, sorted.size()))));
+    }
+
+    private static List<String> ids(List<Score> scores) {
+        List<String> ids = new ArrayList<String>();
+        for(Score score : scores) {
+            ids.add(score.id + ":" + score.score);
+        }
+        return ids;
+    }
+}
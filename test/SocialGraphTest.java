@@ -0,0 +1,166 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+
+import models.SocialGraph;
+
+import static org.fest.assertions.Assertions.*;
+
+/**
+ * Checks the symmetric updates and the lookups of the friendship graph.
+ */
+public class SocialGraphTest {
+
+    private static final SocialGraph.Filter all = new SocialGraph.Filter() {
+        public boolean accept(String facebookID) {
+            return true;
+        }
+    };
+
+    private SocialGraph graph;
+
+    @Before
+    public void setUp() {
+        graph = new SocialGraph();
+    }
+
+    @Test
+    public void updateAddsTheUserToTheNewFriends() {
+        graph.update("a", new String[] {"b", "c"});
+
+        assertThat(graph.areFriends("a", "b")).isTrue();
+        assertThat(graph.areFriends("b", "a")).isTrue();
+        assertThat(graph.areFriends("c", "a")).isTrue();
+        assertThat(graph.areFriends("b", "c")).isFalse();
+        assertThat(graph.numberOfFriends("b")).isEqualTo(1);
+    }
+
+    @Test
+    public void updateRemovesTheUserFromTheOldFriends() {
+        graph.update("a", new String[] {"b", "c"});
+        graph.update("b", new String[] {"a", "d"});
+        graph.update("a", new String[] {"c", "e"});
+
+        assertThat(graph.areFriends("a", "b")).isFalse();
+        assertThat(graph.areFriends("b", "a")).isFalse();
+        assertThat(graph.areFriends("b", "d")).isTrue();
+        assertThat(graph.areFriends("e", "a")).isTrue();
+        assertThat(graph.numberOfFriends("a")).isEqualTo(2);
+        assertThat(graph.numberOfFriends("b")).isEqualTo(1);
+
+        graph.update("a", new String[0]);
+
+        assertThat(graph.numberOfFriends("a")).isEqualTo(0);
+        assertThat(graph.numberOfFriends("c")).isEqualTo(0);
+        assertThat(graph.numberOfFriends("e")).isEqualTo(0);
+    }
+
+    @Test
+    public void duplicatesAndTheUserHimselfAreIgnored() {
+        graph.update("a", new String[] {"c", "b", "a", "c", "b", "c"});
+
+        assertThat(graph.numberOfFriends("a")).isEqualTo(2);
+        assertThat(graph.numberOfFriends("b")).isEqualTo(1);
+        assertThat(graph.numberOfFriends("c")).isEqualTo(1);
+        assertThat(graph.areFriends("a", "a")).isFalse();
+    }
+
+    @Test
+    public void unknownUsers() {
+        List<String> friends = new ArrayList<String>();
+        List<String> friendsOfFriends = new ArrayList<String>();
+
+        graph.findWithinTwoHops("x", all, friends, friendsOfFriends, 10);
+
+        assertThat(friends).isEmpty();
+        assertThat(friendsOfFriends).isEmpty();
+        assertThat(graph.numberOfFriends("x")).isEqualTo(0);
+        assertThat(graph.areFriends("x", "y")).isFalse();
+    }
+
+    @Test
+    public void friendsOfFriendsAreDistinctFromFriendsAndEachOther() {
+        // a - b, a - c, b and c share the friends d and a, c is also a friend of b
+        graph.update("a", new String[] {"b", "c"});
+        graph.update("b", new String[] {"a", "c", "d"});
+        graph.update("c", new String[] {"a", "b", "d", "e"});
+
+        // repeated lookups of the thread start new epochs, earlier marks must not leak into them
+        for(int i = 0; i < 1000; i++) {
+            List<String> friends = new ArrayList<String>();
+            List<String> friendsOfFriends = new ArrayList<String>();
+
+            graph.findWithinTwoHops(i % 2 == 0 ? "a" : "d", all, friends, friendsOfFriends, 10);
+
+            if(i % 2 == 0) {
+                assertThat(friends).containsOnly("b", "c");
+                assertThat(friendsOfFriends).containsOnly("d", "e");
+                assertThat(friendsOfFriends).hasSize(2);
+            } else {
+                assertThat(friends).containsOnly("b", "c");
+                assertThat(friendsOfFriends).containsOnly("a", "e");
+                assertThat(friendsOfFriends).hasSize(2);
+            }
+        }
+    }
+
+    @Test
+    public void filterAppliesToFriendsAndFriendsOfFriends() {
+        graph.update("a", new String[] {"b", "c"});
+        graph.update("b", new String[] {"a", "d", "e"});
+
+        List<String> friends = new ArrayList<String>();
+        List<String> friendsOfFriends = new ArrayList<String>();
+
+        graph.findWithinTwoHops("a", new SocialGraph.Filter() {
+            public boolean accept(String facebookID) {
+                return !facebookID.equals("c") && !facebookID.equals("d");
+            }
+        }, friends, friendsOfFriends, 10);
+
+        assertThat(friends).containsOnly("b");
+        assertThat(friendsOfFriends).containsOnly("e");
+    }
+
+    @Test
+    public void friendsOfFriendsAreLimited() {
+        String[] hubFriends = new String[100];
+        for(int i = 0; i < hubFriends.length; i++) {
+            hubFriends[i] = "f" + i;
+        }
+        graph.update("hub", hubFriends);
+        graph.update("a", new String[] {"hub"});
+
+        List<String> friends = new ArrayList<String>();
+        List<String> friendsOfFriends = new ArrayList<String>();
+
+        graph.findWithinTwoHops("a", all, friends, friendsOfFriends, 7);
+
+        assertThat(friends).containsOnly("hub");
+        assertThat(friendsOfFriends).hasSize(7);
+
+        friendsOfFriends.clear();
+        graph.findWithinTwoHops("a", all, new ArrayList<String>(), friendsOfFriends, 0);
+
+        assertThat(friendsOfFriends).isEmpty();
+    }
+
+    @Test
+    public void growsBeyondTheInitialCapacity() {
+        String[] hubFriends = new String[3000];
+        for(int i = 0; i < hubFriends.length; i++) {
+            hubFriends[i] = "f" + i;
+        }
+        graph.update("hub", hubFriends);
+        graph.update("a", new String[] {"hub"});
+
+        List<String> friendsOfFriends = new ArrayList<String>();
+        graph.findWithinTwoHops("a", all, new ArrayList<String>(), friendsOfFriends, 5000);
+
+        assertThat(graph.size()).isEqualTo(3002);
+        assertThat(graph.numberOfFriends("hub")).isEqualTo(3001);
+        assertThat(graph.areFriends("f2999", "hub")).isTrue();
+        assertThat(friendsOfFriends).hasSize(3000);
+    }
+}
@@ -0,0 +1,150 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.*;
+
+import util.TimingWheel;
+
+import static org.fest.assertions.Assertions.*;
+
+/**
+ * Checks that timeouts expire in the tick of their deadline, on every level of the wheel.
+ */
+public class TimingWheelTest {
+
+    private static final long Tick = 10;
+
+    private List<String> expired;
+
+    @Before
+    public void setUp() {
+        expired = new ArrayList<String>();
+    }
+
+    @Test
+    public void expiresAtTheDeadlineTick() {
+        TimingWheel<String> wheel = new TimingWheel<String>(Tick, 3, 0);
+        wheel.schedule("a", 50);
+
+        wheel.advance(49, expired);
+        assertThat(expired).isEmpty();
+
+        wheel.advance(50, expired);
+        assertThat(expired).containsOnly("a");
+        assertThat(wheel.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void extendedBeforeTheSlotComesDue() {
+        TimingWheel<String> wheel = new TimingWheel<String>(Tick, 3, 0);
+        TimingWheel.Timeout<String> timeout = wheel.schedule("a", 50);
+
+        wheel.advance(30, expired);
+        assertThat(timeout.extend(120)).isTrue();
+        // an earlier deadline does not shorten it
+        assertThat(timeout.extend(60)).isTrue();
+
+        wheel.advance(50, expired);
+        wheel.advance(110, expired);
+        assertThat(expired).isEmpty();
+        assertThat(timeout.isDone()).isFalse();
+
+        wheel.advance(120, expired);
+        assertThat(expired).containsOnly("a");
+        assertThat(timeout.isDone()).isTrue();
+        assertThat(timeout.extend(200)).isFalse();
+    }
+
+    @Test
+    public void cancelledTimeoutsDoNotExpire() {
+        TimingWheel<String> wheel = new TimingWheel<String>(Tick, 3, 0);
+        TimingWheel.Timeout<String> timeout = wheel.schedule("a", 50);
+        wheel.schedule("b", 50);
+
+        assertThat(timeout.cancel()).isTrue();
+        assertThat(timeout.cancel()).isFalse();
+
+        wheel.advance(50, expired);
+        assertThat(expired).containsOnly("b");
+        assertThat(wheel.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void cascadesAcrossTheLevelOneBoundary() {
+        // 64 ticks per revolution of level 0, start in the middle of one
+        assertExpiresExactly(new TimingWheel<String>(Tick, 3, 40 * Tick), 40 + 100);
+    }
+
+    @Test
+    public void cascadesAcrossTheLevelTwoBoundary() {
+        // 64 * 64 ticks per revolution of level 1
+        assertExpiresExactly(new TimingWheel<String>(Tick, 3, 1000 * Tick), 1000 + 64 * 64 + 77);
+    }
+
+    @Test
+    public void deadlinesBeyondTheWheel() {
+        // two levels reach 64^2 = 4096 ticks
+        assertExpiresExactly(new TimingWheel<String>(Tick, 2, 5 * Tick), 5 + 3 * 4096 + 11);
+    }
+
+    @Test
+    public void randomDeadlinesAndAdvances() {
+        Random random = new Random(7);
+        long now = 123456 * Tick;
+        TimingWheel<String> wheel = new TimingWheel<String>(Tick, 2, now);
+
+        Map<String, Long> deadlines = new HashMap<String, Long>();
+        Map<String, TimingWheel.Timeout<String>> timeouts = new HashMap<String, TimingWheel.Timeout<String>>();
+
+        for(int i = 0; i < 20000; i++) {
+            if(random.nextInt(4) > 0) {
+                // beyond the 4096 ticks of the wheel as well
+                long deadline = now + Tick + random.nextInt(6000) * Tick + random.nextInt((int) Tick);
+                String value = "t" + i;
+
+                deadlines.put(value, deadline);
+                timeouts.put(value, wheel.schedule(value, deadline));
+
+            } else if(!timeouts.isEmpty()) {
+                String value = timeouts.keySet().iterator().next();
+                long deadline = deadlines.get(value) + random.nextInt(3000) * Tick;
+
+                assertThat(timeouts.get(value).extend(deadline)).isTrue();
+                deadlines.put(value, deadline);
+            }
+
+            now += random.nextInt(20) * Tick / 2;
+
+            expired.clear();
+            wheel.advance(now, expired);
+
+            for(String value : expired) {
+                // expired in the tick of the deadline, neither earlier nor later
+                assertThat(deadlines.get(value) / Tick).isLessThanOrEqualTo(now / Tick);
+                deadlines.remove(value);
+                timeouts.remove(value);
+            }
+
+            for(Map.Entry<String, Long> entry : deadlines.entrySet()) {
+                assertThat(entry.getValue() / Tick).isGreaterThan(now / Tick);
+            }
+        }
+    }
+
+    // advances tick by tick, the timeout has to expire exactly at its deadline
+    private void assertExpiresExactly(TimingWheel<String> wheel, long deadlineTick) {
+        wheel.schedule("a", deadlineTick * Tick);
+
+        long tick = 0;
+        while(expired.isEmpty()) {
+            tick++;
+            wheel.advance(tick * Tick, expired);
+        }
+
+        assertThat(tick).isEqualTo(deadlineTick);
+        assertThat(expired).containsOnly("a");
+    }
+}